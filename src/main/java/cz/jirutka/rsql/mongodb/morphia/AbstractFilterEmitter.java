@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import cz.jirutka.rsql.mongodb.morphia.internal.SimpleCriteriaContainer;
+import cz.jirutka.rsql.mongodb.morphia.internal.SimpleFieldCriteria;
+import org.mongodb.morphia.query.Criteria;
+import org.mongodb.morphia.query.CriteriaJoin;
+import org.mongodb.morphia.query.FilterOperator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base class for {@link FilterEmitter}s that walks the compiled filter
+ * tree bottom-up.
+ *
+ * @param <R> Type of the emitted filter.
+ */
+public abstract class AbstractFilterEmitter<R> implements FilterEmitter<R> {
+
+    public R emit(Criteria compiled) {
+
+        if (compiled instanceof SimpleFieldCriteria) {
+            SimpleFieldCriteria field = (SimpleFieldCriteria) compiled;
+            return emitField(field.getFieldName(), field.getOperator(), field.getValue());
+
+        } else if (compiled instanceof SimpleCriteriaContainer) {
+            SimpleCriteriaContainer container = (SimpleCriteriaContainer) compiled;
+
+            List<R> children = new ArrayList<>(container.getChildren().size());
+            for (Criteria child : container.getChildren()) {
+                children.add(emit(child));
+            }
+            return emitJunction(container.getJoinMethod(), children);
+
+        } else {
+            throw new IllegalArgumentException("Unsupported type of criteria: " + compiled.getClass());
+        }
+    }
+
+    /**
+     * Emits a comparison on a field.
+     *
+     * @param fieldPath The resolved field path (i.e. names used in DB).
+     * @param operator The filter operator.
+     * @param value The value already converted to a Mongo object.
+     */
+    protected abstract R emitField(String fieldPath, FilterOperator operator, Object value);
+
+    /**
+     * Emits a logical junction of the already emitted children.
+     */
+    protected abstract R emitJunction(CriteriaJoin join, List<R> children);
+}
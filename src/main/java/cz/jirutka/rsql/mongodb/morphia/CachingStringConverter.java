@@ -0,0 +1,267 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import lombok.Getter;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decorator of {@link StringConverter} that caches the converted values.
+ * It's useful when the conversion is expensive (e.g. via Spring's
+ * {@link org.springframework.core.convert.ConversionService ConversionService})
+ * and the same values repeat in the queries, like enum names, status codes
+ * or tenant ids.
+ *
+ * <p>The cache is bounded by the number of entries and by the total length
+ * of the cached source values; the least recently used entries are evicted
+ * first. It's split into segments by hash of the key, each with its own lock
+ * and an equal share of the bounds, so concurrent conversions of different
+ * values rarely contend; the LRU order is kept per segment only. Failed
+ * conversions are not cached.</p>
+ *
+ * <p>The cached values are shared, so the decorated converter should produce
+ * immutable values. {@link Date}s are mutable, so they're not cached.</p>
+ */
+@ThreadSafe
+public class CachingStringConverter extends AbstractStringConverter {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+    public static final long DEFAULT_MAX_WEIGHT = 64 * 1024;
+
+    private static final int MAX_SEGMENTS = 16;
+
+    // minimal number of entries per segment, smaller caches have less segments
+    private static final int MIN_SEGMENT_ENTRIES = 64;
+
+    private final StringConverter delegate;
+
+    @Getter
+    private final int maxEntries;
+
+    @Getter
+    private final long maxWeight;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private final Segment[] segments;
+
+
+    public CachingStringConverter(StringConverter delegate) {
+        this(delegate, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * @param delegate The converter to delegate conversion of uncached values.
+     * @param maxEntries The maximal number of cached values.
+     * @param maxWeight The maximal total length of the cached source values
+     *                  (i.e. the strings).
+     */
+    public CachingStringConverter(StringConverter delegate, int maxEntries, long maxWeight) {
+        this.delegate = delegate;
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+
+        int count = 1;
+        while (count < MAX_SEGMENTS && maxEntries / (count * 2) >= MIN_SEGMENT_ENTRIES) {
+            count *= 2;
+        }
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(maxEntries / count, maxWeight / count);
+        }
+    }
+
+
+    @SuppressWarnings("unchecked")
+    public <T> T convert(String value, Class<T> targetType) {
+
+        if (targetType == String.class || value == null) {
+            return (T) value;
+        }
+        Key key = new Key(value, targetType);
+        Segment segment = segmentFor(key);
+
+        Object cached = segment.get(key);
+        if (cached != null) {
+            hitCount.incrementAndGet();
+            return (T) cached;
+        }
+        missCount.incrementAndGet();
+
+        // convert outside of the lock, the conversion may be slow
+        T result = delegate.convert(value, targetType);
+
+        if (result != null && !(result instanceof Date)) {
+            segment.put(key, result);
+        }
+        return result;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns ratio of the cache hits to all requests, or 0 if there was
+     * no request yet.
+     */
+    public double getHitRate() {
+        long hits = hitCount.get(), total = hits + missCount.get();
+        return total > 0 ? (double) hits / total : 0.0;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the total length of the cached source values.
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            weight += segment.weight();
+        }
+        return weight;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CachingStringConverter[size=%d, weight=%d, hits=%d, misses=%d, evictions=%d]",
+                getSize(), getWeight(), getHitCount(), getMissCount(), getEvictionCount());
+    }
+
+
+    private Segment segmentFor(Key key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+
+        return segments[hash & (segments.length - 1)];
+    }
+
+
+    /**
+     * A part of the cache with its own lock and bounds.
+     */
+    private final class Segment {
+
+        final int maxEntries;
+        final long maxWeight;
+
+        // guarded by this
+        final Map<Key, Object> map = new LinkedHashMap<>(16, 0.75f, true);
+
+        // guarded by this
+        long weight = 0;
+
+        Segment(int maxEntries, long maxWeight) {
+            this.maxEntries = maxEntries;
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized Object get(Key key) {
+            return map.get(key);
+        }
+
+        synchronized void put(Key key, Object value) {
+            if (key.value.length() > maxWeight) {
+                return;
+            }
+            if (map.put(key, value) == null) {
+                weight += key.value.length();
+            }
+            Iterator<Key> it = map.keySet().iterator();
+
+            while ((map.size() > maxEntries || weight > maxWeight) && it.hasNext()) {
+                weight -= it.next().value.length();
+                it.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        synchronized long weight() {
+            return weight;
+        }
+
+        synchronized void clear() {
+            map.clear();
+            weight = 0;
+        }
+    }
+
+    private static final class Key {
+
+        final String value;
+        final Class<?> type;
+
+        Key(String value, Class<?> type) {
+            this.value = value;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return type == other.type && value.equals(other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + value.hashCode();
+        }
+    }
+}
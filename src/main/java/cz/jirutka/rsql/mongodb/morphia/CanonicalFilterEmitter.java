@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import com.mongodb.util.JSON;
+import net.jcip.annotations.Immutable;
+import org.mongodb.morphia.query.CriteriaJoin;
+import org.mongodb.morphia.query.FilterOperator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link FilterEmitter} that emits a canonical string form of the filter,
+ * usable as a cache key. Children of each junction are sorted, so filters
+ * that differ only in order of the <tt>;</tt> and <tt>,</tt> operands
+ * have the same canonical form, e.g. <tt>a==1;(c==3,b==2)</tt> and
+ * <tt>(b==2,c==3);a==1</tt>.
+ */
+@Immutable
+public class CanonicalFilterEmitter extends AbstractFilterEmitter<String> {
+
+    protected String emitField(String fieldPath, FilterOperator operator, Object value) {
+        return fieldPath + operator.val() + JSON.serialize(value);
+    }
+
+    protected String emitJunction(CriteriaJoin join, List<String> children) {
+
+        if (children.size() == 1) {
+            return children.get(0);
+        }
+        List<String> sorted = new ArrayList<>(children);
+        Collections.sort(sorted);
+
+        StringBuilder sb = new StringBuilder().append('(');
+        for (String child : sorted) {
+            if (sb.length() > 1) {
+                sb.append(join == CriteriaJoin.AND ? ';' : ',');
+            }
+            sb.append(child);
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import net.jcip.annotations.Immutable;
+import org.mongodb.morphia.query.CriteriaJoin;
+import org.mongodb.morphia.query.FilterOperator;
+
+import java.util.List;
+
+/**
+ * {@link FilterEmitter} that writes the filter directly into a
+ * {@link DBObject} that can be passed to the driver's
+ * {@link com.mongodb.DBCollection DBCollection}, without Morphia's
+ * {@link org.mongodb.morphia.query.Query Query}.
+ *
+ * <p>Children of AND are merged into a single document when their keys
+ * don't collide, otherwise they're wrapped in <tt>$and</tt>.</p>
+ */
+@Immutable
+public class DBObjectFilterEmitter extends AbstractFilterEmitter<DBObject> {
+
+    protected DBObject emitField(String fieldPath, FilterOperator operator, Object value) {
+
+        if (operator == FilterOperator.EQUAL) {
+            return new BasicDBObject(fieldPath, value);
+        } else {
+            return new BasicDBObject(fieldPath, new BasicDBObject(operator.val(), value));
+        }
+    }
+
+    protected DBObject emitJunction(CriteriaJoin join, List<DBObject> children) {
+
+        if (children.size() == 1) {
+            return children.get(0);
+        }
+        if (join == CriteriaJoin.AND) {
+            DBObject merged = new BasicDBObject();
+
+            for (DBObject child : children) {
+                for (String key : child.keySet()) {
+                    if (merged.containsField(key)) {
+                        return new BasicDBObject("$and", children);
+                    }
+                    merged.put(key, child.get(key));
+                }
+            }
+            return merged;
+
+        } else {
+            return new BasicDBObject("$or", children);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import cz.jirutka.rsql.mongodb.morphia.internal.BoundedCache;
+import lombok.Getter;
+import net.jcip.annotations.ThreadSafe;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.Key;
+import org.mongodb.morphia.query.Criteria;
+import org.mongodb.morphia.query.Query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Implementation of {@link ReferencedIdsFinder} that queries the referenced
+ * entities via {@link Datastore} and caches the found ids.
+ *
+ * <p>The number of ids per query is limited to protect the database and
+ * the application from filters like <tt>owner.name!=foo</tt> that would
+ * produce a huge <tt>$in</tt>. The cached ids are reused until they expire,
+ * so the results may be stale for at most the cache TTL.</p>
+ */
+@ThreadSafe
+public class DefaultReferencedIdsFinder implements ReferencedIdsFinder {
+
+    public static final int DEFAULT_MAX_IDS = 1000;
+    public static final int DEFAULT_CACHE_SIZE = 256;
+    public static final long DEFAULT_CACHE_TTL = 60000;
+
+    private final Datastore datastore;
+
+    @Getter
+    private final int maxIds;
+
+    private final BoundedCache<String, Collection<?>> cache;
+
+
+    public DefaultReferencedIdsFinder(Datastore datastore) {
+        this(datastore, DEFAULT_MAX_IDS, DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL);
+    }
+
+    /**
+     * @param datastore The datastore used to query the referenced entities.
+     * @param maxIds The maximal number of ids that may be found for a single
+     *               criteria.
+     * @param cacheSize The maximal number of cached criteria, zero to disable
+     *                  the cache.
+     * @param cacheTtlMillis Time-to-live of the cached ids in milliseconds.
+     */
+    public DefaultReferencedIdsFinder(Datastore datastore, int maxIds, int cacheSize, long cacheTtlMillis) {
+        this.datastore = datastore;
+        this.maxIds = maxIds;
+        this.cache = new BoundedCache<>(cacheSize, cacheTtlMillis);
+    }
+
+
+    public Collection<?> findIds(Class<?> entityClass, Criteria criteria) {
+
+        DBObject queryObject = new BasicDBObject();
+        criteria.addTo(queryObject);
+
+        String cacheKey = entityClass.getName() + queryObject;
+
+        Collection<?> ids = cache.get(cacheKey);
+        if (ids == null) {
+            ids = queryIds(entityClass, criteria);
+            cache.put(cacheKey, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * Removes all the cached ids.
+     */
+    public void clearCache() {
+        cache.clear();
+    }
+
+
+    protected Collection<?> queryIds(Class<?> entityClass, Criteria criteria) {
+
+        Query<?> query = datastore.createQuery(entityClass);
+        query.and(criteria);
+
+        List<? extends Key<?>> keys = query.limit(maxIds + 1).asKeyList();
+
+        if (keys.size() > maxIds) {
+            throw new RSQLValidationException(String.format(
+                    "Filter on referenced %s matches more than %d entities", entityClass.getSimpleName(), maxIds));
+        }
+        List<Object> ids = new ArrayList<>(keys.size());
+        for (Key<?> key : keys) {
+            ids.add(key.getId());
+        }
+        return Collections.unmodifiableList(ids);
+    }
+}
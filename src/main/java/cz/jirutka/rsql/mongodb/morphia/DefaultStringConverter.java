@@ -33,15 +33,16 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.Set;
-
-import static java.util.Arrays.asList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 
 /**
  * Simple implementation of {@link StringConverter}
  * interface that can convert String to common Java types:
- * <tt>Boolean, Integer, Long, Double, Float, Date</tt>.
+ * <tt>Boolean, Integer, Long, Double, Float, Date</tt>, including their
+ * primitive counterparts. It's thread-safe.
  *
  * <p>The date must be in one of these ISO 8601 formats:
  * <ul>
@@ -67,14 +68,28 @@ public class DefaultStringConverter extends AbstractStringConverter {
 
     private static final Logger log = LoggerFactory.getLogger(DefaultStringConverter.class);
 
-    private static final DateFormat[] ISO8601_DATE_FORMATS = new DateFormat[] {
-            new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssX"), // datetime with time zone (e.g. Z, +01:00, ...)
-            new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss"),  // datetime in local zone
-            new SimpleDateFormat("yyyy-MM-dd") };           // date only
+    // SimpleDateFormat is not thread-safe
+    private static final ThreadLocal<DateFormat[]> ISO8601_DATE_FORMATS = new ThreadLocal<DateFormat[]>() {
+        protected DateFormat[] initialValue() {
+            return new DateFormat[] {
+                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssX"), // datetime with time zone (e.g. Z, +01:00, ...)
+                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss"),  // datetime in local zone
+                new SimpleDateFormat("yyyy-MM-dd") };           // date only
+        }
+    };
+
+    private static final String[]
+            TRUE_VALUES = { "true", "yes", "y" },
+            FALSE_VALUES = { "false", "no", "n" };
 
-    private static final Set<String>
-            TRUE_VALUES = new HashSet<>(asList("true", "yes", "y")),
-            FALSE_VALUES = new HashSet<>(asList("false", "no", "n"));
+    // lookup maps of enum constants, lazily initialized for each enum class;
+    // ClassValue doesn't prevent the enum's class loader from being unloaded
+    private static final ClassValue<Map<String, Enum>> ENUM_CONSTANTS = new ClassValue<Map<String, Enum>>() {
+        @SuppressWarnings("unchecked")
+        protected Map<String, Enum> computeValue(Class<?> type) {
+            return createEnumLookupMap((Class<? extends Enum>) type);
+        }
+    };
 
 
     @SuppressWarnings("unchecked")
@@ -87,29 +102,41 @@ public class DefaultStringConverter extends AbstractStringConverter {
             if (type.equals(String.class)) {
                 return (T) value;
             }
-            if (type.equals(Integer.class)) {
+            if (type.equals(Integer.class) || type == int.class) {
+                checkFormat(isInteger(value), value, type);
                 return (T) Integer.valueOf(value);
             }
             if (type.equals(Boolean.class)) {
                 return (T) parseBoolean(value);
             }
+            if (type == boolean.class) {
+                try {
+                    return (T) parseBoolean(value);
+                } catch (RSQLArgumentFormatException ex) {
+                    throw new RSQLArgumentFormatException(value, type);
+                }
+            }
             if (type.isEnum()) {
                 return (T) parseEnum(value, (Class) type);
             }
-            if (type.equals(Double.class)) {
+            if (type.equals(Double.class) || type == double.class) {
+                checkFormat(isDecimal(value), value, type);
                 return (T) Double.valueOf(value);
             }
-            if (type.equals(Float.class)) {
+            if (type.equals(Float.class) || type == float.class) {
+                checkFormat(isDecimal(value), value, type);
                 return (T) Float.valueOf(value);
             }
-            if (type.equals(Long.class)) {
+            if (type.equals(Long.class) || type == long.class) {
+                checkFormat(isInteger(value), value, type);
                 return (T) Long.valueOf(value);
             }
             if (type.equals(Date.class)) {
                 return (T) parseDate(value);
             }
         } catch (IllegalArgumentException ex) {
-            throw new RSQLArgumentFormatException(value, type, ex);
+            // e.g. overflow, the common malformed values are rejected by checkFormat()
+            throw new RSQLArgumentFormatException(value, type, RSQLException.isStackTraceEnabled() ? ex : null);
         }
 
         // try to parse via valueOf(String s) method
@@ -133,30 +160,44 @@ public class DefaultStringConverter extends AbstractStringConverter {
 
 
     protected Boolean parseBoolean(String value) {
-        value = value.trim().toLowerCase();
+        int start = 0, end = value.length();
 
-        if (TRUE_VALUES.contains(value)) {
+        // trim without allocation
+        while (start < end && Character.isWhitespace(value.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(value.charAt(end - 1))) {
+            end--;
+        }
+        if (matchesAny(value, start, end, TRUE_VALUES)) {
             return true;
 
-        } else if (FALSE_VALUES.contains(value)) {
+        } else if (matchesAny(value, start, end, FALSE_VALUES)) {
             return false;
 
         } else {
-            throw new IllegalArgumentException("Invalid boolean value: " + value);
+            throw new RSQLArgumentFormatException(value, Boolean.class);
         }
     }
 
+    @SuppressWarnings("unchecked")
     protected <T extends Enum> T parseEnum(String value, Class<T> enumClass) {
-        for (T e : enumClass.getEnumConstants()) {
-            if (e.name().equalsIgnoreCase(value.toUpperCase())) {
-                return e;
-            }
+        Map<String, Enum> constants = ENUM_CONSTANTS.get(enumClass);
+        Enum result = constants.get(value);
+
+        if (result == null) {
+            result = constants.get(value.toUpperCase(Locale.ROOT));
         }
-        throw new RSQLArgumentFormatException(value, enumClass);
+        if (result == null) {
+            throw new RSQLArgumentFormatException(value, enumClass);
+        }
+        return (T) result;
     }
 
     protected Date parseDate(String value) {
-        for (DateFormat formatter : ISO8601_DATE_FORMATS) {
+        for (DateFormat formatter : ISO8601_DATE_FORMATS.get()) {
+            // the formats are reused, so the default zone may have changed since creation
+            formatter.setTimeZone(TimeZone.getDefault());
             try {
                 return formatter.parse(value);
             } catch (ParseException ex) {
@@ -165,4 +206,122 @@ public class DefaultStringConverter extends AbstractStringConverter {
         }
         throw new RSQLArgumentFormatException(value, Date.class);
     }
+
+
+    /**
+     * Throws an exception when the value is malformed. This is much cheaper
+     * than letting the parse method throw an exception and wrap it.
+     */
+    private void checkFormat(boolean valid, String value, Class<?> type) {
+        if (!valid) {
+            throw new RSQLArgumentFormatException(value, type);
+        }
+    }
+
+    /**
+     * Checks if the value matches <tt>[+-]?[0-9]+</tt>, i.e. the format
+     * accepted by {@link Long#valueOf(String)}. It doesn't check overflow.
+     */
+    private boolean isInteger(String value) {
+        int i = 0, length = value.length();
+
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            i++;
+        }
+        int digits = skipDigits(value, i);
+
+        return digits > i && digits == length;
+    }
+
+    /**
+     * Checks if the value roughly matches the format accepted by
+     * {@link Double#valueOf(String)}, i.e. a decimal number with an optional
+     * exponent and type suffix. Values that are not obviously malformed,
+     * like NaN, Infinity and hexadecimal numbers, are left to the parser.
+     */
+    private boolean isDecimal(String value) {
+        int i = 0, length = value.length();
+
+        // Double.valueOf() trims the value
+        while (i < length && value.charAt(i) <= ' ') {
+            i++;
+        }
+        while (length > i && value.charAt(length - 1) <= ' ') {
+            length--;
+        }
+        if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            i++;
+        }
+        if (value.startsWith("NaN", i) || value.startsWith("Infinity", i)
+                || value.startsWith("0x", i) || value.startsWith("0X", i)) {
+            return true;
+        }
+        int intEnd = skipDigits(value, i), fractionEnd = intEnd;
+
+        if (intEnd < length && value.charAt(intEnd) == '.') {
+            fractionEnd = skipDigits(value, intEnd + 1);
+        }
+        // at least one digit before or after the decimal point
+        if (intEnd == i && fractionEnd <= intEnd + 1) {
+            return false;
+        }
+        i = fractionEnd;
+
+        if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+                i++;
+            }
+            int expEnd = skipDigits(value, i);
+            if (expEnd == i) {
+                return false;
+            }
+            i = expEnd;
+        }
+        if (i < length && "fFdD".indexOf(value.charAt(i)) >= 0) {
+            i++;
+        }
+        return i == length;
+    }
+
+    private int skipDigits(String value, int start) {
+        int i = start;
+        while (i < value.length() && value.charAt(i) >= '0' && value.charAt(i) <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    private boolean matchesAny(String value, int start, int end, String[] candidates) {
+        for (String candidate : candidates) {
+            if (candidate.length() == end - start && value.regionMatches(true, start, candidate, 0, end - start)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a map of the enum constants by their name, upper case name and
+     * lower case name. If two constants differ only in case, then the first
+     * one wins when matched case-insensitively.
+     */
+    private static Map<String, Enum> createEnumLookupMap(Class<? extends Enum> enumClass) {
+        Map<String, Enum> map = new HashMap<>();
+
+        for (Enum e : enumClass.getEnumConstants()) {
+            map.put(e.name(), e);
+        }
+        for (Enum e : enumClass.getEnumConstants()) {
+            String upper = e.name().toUpperCase(Locale.ROOT), lower = e.name().toLowerCase(Locale.ROOT);
+
+            if (!map.containsKey(upper)) {
+                map.put(upper, e);
+            }
+            if (!map.containsKey(lower)) {
+                map.put(lower, e);
+            }
+        }
+        return map;
+    }
 }
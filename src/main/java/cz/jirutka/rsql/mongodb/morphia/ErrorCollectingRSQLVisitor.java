@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import cz.jirutka.rsql.mongodb.morphia.internal.MappedFieldPathResolver;
+import cz.jirutka.rsql.mongodb.morphia.internal.ReferencedFieldPath;
+import cz.jirutka.rsql.mongodb.morphia.internal.SimpleFieldCriteria;
+import cz.jirutka.rsql.parser.ast.ComparisonNode;
+import cz.jirutka.rsql.parser.ast.Node;
+import net.jcip.annotations.NotThreadSafe;
+import org.mongodb.morphia.mapping.Mapper;
+import org.mongodb.morphia.query.Criteria;
+import org.mongodb.morphia.query.FilterOperator;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Variant of {@link MorphiaRSQLVisitor} that doesn't stop on the first
+ * invalid comparison, but collects all the errors in the visited filter.
+ * It doesn't query the database, so comparisons on fields of referenced
+ * entities are only validated. The returned criteria should be discarded.
+ */
+@NotThreadSafe
+class ErrorCollectingRSQLVisitor extends MorphiaRSQLVisitor {
+
+    private static final ReferencedIdsFinder NO_IDS_FINDER = new ReferencedIdsFinder() {
+        public Collection<?> findIds(Class<?> entityClass, Criteria criteria) {
+            return Collections.emptyList();
+        }
+    };
+
+    private final Mapper mapper;
+
+    private final StringConverter converter;
+
+    private final MappedFieldPathResolver fieldPathResolver;
+
+    private final List<RSQLException> errors;
+
+
+    /**
+     * @param referencesAllowed Whether selectors may go through a reference.
+     * @param errors The list to add the errors into.
+     */
+    ErrorCollectingRSQLVisitor(Class<?> entityClass, Mapper mapper, StringConverter converter,
+                               MappedFieldPathResolver fieldPathResolver, boolean referencesAllowed,
+                               List<RSQLException> errors) {
+        super(entityClass, mapper, converter, fieldPathResolver, referencesAllowed ? NO_IDS_FINDER : null);
+        this.mapper = mapper;
+        this.converter = converter;
+        this.fieldPathResolver = fieldPathResolver;
+        this.errors = errors;
+    }
+
+
+    @Override
+    protected Criteria createCriteria(ComparisonNode node, FilterOperator operator) {
+        try {
+            return super.createCriteria(node, operator);
+        } catch (RSQLException ex) {
+            return recordError(ex, node, operator);
+        }
+    }
+
+    @Override
+    protected Criteria createGeoCriteria(ComparisonNode node, FilterOperator operator) {
+        try {
+            return super.createGeoCriteria(node, operator);
+        } catch (RSQLException ex) {
+            return recordError(ex, node, operator);
+        }
+    }
+
+    @Override
+    protected Criteria createReferenceCriteria(ReferencedFieldPath rfp, List<Node> nodes) {
+        int firstError = errors.size();
+        Criteria criteria = super.createReferenceCriteria(rfp, nodes);
+
+        for (RSQLException error : errors.subList(firstError, errors.size())) {
+            error.withSelectorPrefix(rfp.getSelectorPrefix());
+        }
+        return criteria;
+    }
+
+    @Override
+    protected MorphiaRSQLVisitor createReferencedEntityVisitor(Class<?> referencedClass) {
+        return new ErrorCollectingRSQLVisitor(referencedClass, mapper, converter, fieldPathResolver, true, errors);
+    }
+
+
+    private Criteria recordError(RSQLException ex, ComparisonNode node, FilterOperator operator) {
+        errors.add(ex.withSelector(node.getSelector()));
+
+        // placeholder, so the visitor can continue
+        return new SimpleFieldCriteria(node.getSelector(), operator, null);
+    }
+}
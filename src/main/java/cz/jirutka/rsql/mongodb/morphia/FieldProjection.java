@@ -0,0 +1,154 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+import net.jcip.annotations.Immutable;
+import org.mongodb.morphia.mapping.Mapper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Projection of the requested fields, resolved against the entity mapping.
+ * It can be used for a Mongo projection document, or to read the fields of
+ * the retrieved raw documents into a lightweight {@code Map} view.
+ *
+ * @see MorphiaRSQL#createProjection(Collection, Class)
+ */
+@Immutable
+public class FieldProjection {
+
+    // key is the requested field (selector), value is the resolved path
+    private final Map<String, String> paths;
+
+    private final boolean classNameIncluded;
+
+
+    /**
+     * @param paths Map of the requested fields (selectors) to the resolved
+     *              field paths (i.e. names used in DB).
+     */
+    public FieldProjection(Map<String, String> paths) {
+        this(paths, false);
+    }
+
+    /**
+     * @param paths Map of the requested fields (selectors) to the resolved
+     *              field paths (i.e. names used in DB).
+     * @param classNameIncluded Whether to project also the {@code className}
+     *                          field, so Morphia can instantiate the right
+     *                          subclass from the retrieved document.
+     */
+    public FieldProjection(Map<String, String> paths, boolean classNameIncluded) {
+        this.paths = Collections.unmodifiableMap(new LinkedHashMap<>(paths));
+        this.classNameIncluded = classNameIncluded;
+    }
+
+
+    /**
+     * Returns map of the requested fields (selectors) to the resolved field
+     * paths (i.e. names used in DB), in the requested order.
+     */
+    public Map<String, String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * Whether the {@code className} field is projected in addition to the
+     * requested fields.
+     */
+    public boolean isClassNameIncluded() {
+        return classNameIncluded;
+    }
+
+    /**
+     * Returns the resolved field paths (i.e. names used in DB), without
+     * {@code className}.
+     */
+    public String[] getFieldPaths() {
+        return paths.values().toArray(new String[paths.size()]);
+    }
+
+    /**
+     * Returns a projection document that includes the resolved fields, and
+     * {@code className} if {@linkplain #isClassNameIncluded() included}.
+     */
+    public DBObject toDBObject() {
+        DBObject projection = new BasicDBObject();
+
+        for (String path : paths.values()) {
+            projection.put(path, 1);
+        }
+        if (classNameIncluded) {
+            projection.put(Mapper.CLASS_NAME_FIELDNAME, 1);
+        }
+        return projection;
+    }
+
+    /**
+     * Reads the projected fields from the document into a map keyed by the
+     * requested fields. Values of fields inside lists of embedded documents
+     * are collected into a list, references are replaced by their ids.
+     *
+     * @param document The raw document retrieved from DB.
+     * @return A map of the requested fields to their values; fields missing
+     *         in the document are mapped to {@code null}.
+     */
+    public Map<String, Object> toMap(DBObject document) {
+        Map<String, Object> result = new LinkedHashMap<>(paths.size());
+
+        for (Map.Entry<String, String> entry : paths.entrySet()) {
+            result.put(entry.getKey(), getValue(document, entry.getValue().split("\\."), 0));
+        }
+        return result;
+    }
+
+
+    private Object getValue(Object obj, String[] path, int depth) {
+
+        if (depth == path.length) {
+            return obj instanceof DBRef ? ((DBRef) obj).getId() : obj;
+
+        } else if (obj instanceof List) {
+            List<Object> values = new ArrayList<>();
+            for (Object item : (List<?>) obj) {
+                values.add(getValue(item, path, depth));
+            }
+            return values;
+
+        } else if (obj instanceof DBObject) {
+            return getValue(((DBObject) obj).get(path[depth]), path, depth + 1);
+
+        } else {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import org.mongodb.morphia.query.Criteria;
+
+/**
+ * Emits a compiled filter into a representation of some MongoDB API.
+ *
+ * <p>The compiled filter is a tree created by {@link MorphiaRSQLVisitor},
+ * i.e. {@link cz.jirutka.rsql.mongodb.morphia.internal.SimpleFieldCriteria
+ * SimpleFieldCriteria} with already resolved field paths and values
+ * converted to Mongo objects, joined by
+ * {@link cz.jirutka.rsql.mongodb.morphia.internal.SimpleCriteriaContainer
+ * SimpleCriteriaContainer}s. So the same compiled filter can be emitted for
+ * different APIs without parsing and converting it again.</p>
+ *
+ * @param <R> Type of the emitted filter.
+ */
+public interface FilterEmitter<R> {
+
+    /**
+     * Emits the compiled filter.
+     *
+     * @param compiled The compiled filter.
+     * @return The emitted filter.
+     * @throws IllegalArgumentException if the filter contains an unsupported
+     *         type of criteria.
+     */
+    R emit(Criteria compiled);
+}
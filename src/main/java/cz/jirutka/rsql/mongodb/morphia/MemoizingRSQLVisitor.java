@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import cz.jirutka.rsql.mongodb.morphia.internal.BoundedCache;
+import cz.jirutka.rsql.mongodb.morphia.internal.MappedFieldPathResolver;
+import cz.jirutka.rsql.mongodb.morphia.internal.ReferencedFieldPath;
+import cz.jirutka.rsql.mongodb.morphia.internal.SimpleCriteriaContainer;
+import cz.jirutka.rsql.parser.ast.AndNode;
+import cz.jirutka.rsql.parser.ast.ComparisonNode;
+import cz.jirutka.rsql.parser.ast.LogicalNode;
+import cz.jirutka.rsql.parser.ast.Node;
+import cz.jirutka.rsql.parser.ast.OrNode;
+import net.jcip.annotations.NotThreadSafe;
+import org.mongodb.morphia.mapping.Mapper;
+import org.mongodb.morphia.query.Criteria;
+import org.mongodb.morphia.query.FilterOperator;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Variant of {@link MorphiaRSQLVisitor} that memoizes the compiled criteria
+ * of each sub-tree in a table shared among the visitors, keyed by the
+ * structural key of the sub-tree (i.e. its normalized RSQL). When a filter
+ * is slightly modified and compiled again, only the changed comparisons and
+ * the logical nodes above them are compiled, the rest is reused.
+ *
+ * <p>Sub-trees with comparisons on fields of referenced entities are not
+ * memoized, since their criteria contain ids found in the database (that
+ * are cached by the {@link ReferencedIdsFinder} with its own expiration).</p>
+ *
+ * <p>The memoized criteria are shared, so the containers are
+ * {@linkplain SimpleCriteriaContainer#seal() sealed}.</p>
+ *
+ * <p>The key doesn't include the converter, mapper or field path resolver,
+ * so the table must be cleared when any of them changes (see
+ * {@link MorphiaRSQLImpl#clearCompiledCaches()}).</p>
+ */
+@NotThreadSafe
+class MemoizingRSQLVisitor extends MorphiaRSQLVisitor {
+
+    private final Class<?> entityClass;
+
+    private final BoundedCache<Object, Criteria> memo;
+
+    // structural keys of the visited nodes, computed once per node
+    private final Map<Node, String> keys = new IdentityHashMap<>();
+
+    // whether the currently visited sub-tree contains a reference
+    private boolean referenceVisited = false;
+
+
+    /**
+     * @param memo The memo table of compiled sub-criteria.
+     */
+    MemoizingRSQLVisitor(Class<?> entityClass, Mapper mapper, StringConverter converter,
+                         MappedFieldPathResolver fieldPathResolver, ReferencedIdsFinder referencedIdsFinder,
+                         BoundedCache<Object, Criteria> memo) {
+        super(entityClass, mapper, converter, fieldPathResolver, referencedIdsFinder);
+        this.entityClass = entityClass;
+        this.memo = memo;
+    }
+
+
+    @Override
+    public Criteria visit(AndNode node) {
+        return visitLogical(node);
+    }
+
+    @Override
+    public Criteria visit(OrNode node) {
+        return visitLogical(node);
+    }
+
+    @Override
+    protected Criteria createCriteria(ComparisonNode node, FilterOperator operator) {
+        MemoKey key = memoKey(node);
+        Criteria criteria = memo.get(key);
+
+        if (criteria == null) {
+            criteria = super.createCriteria(node, operator);
+            memo.put(key, criteria);
+        }
+        return criteria;
+    }
+
+    @Override
+    protected Criteria createGeoCriteria(ComparisonNode node, FilterOperator operator) {
+        MemoKey key = memoKey(node);
+        Criteria criteria = memo.get(key);
+
+        if (criteria == null) {
+            criteria = super.createGeoCriteria(node, operator);
+            memo.put(key, criteria);
+        }
+        return criteria;
+    }
+
+    @Override
+    protected Criteria createReferenceCriteria(ReferencedFieldPath rfp, List<Node> nodes) {
+        referenceVisited = true;
+        return super.createReferenceCriteria(rfp, nodes);
+    }
+
+
+    private Criteria visitLogical(LogicalNode node) {
+        MemoKey key = memoKey(node);
+        Criteria criteria = memo.get(key);
+
+        if (criteria != null) {
+            return criteria;
+        }
+        boolean outerReferenceVisited = referenceVisited;
+        referenceVisited = false;
+
+        criteria = node instanceof AndNode ? super.visit((AndNode) node) : super.visit((OrNode) node);
+
+        if (!referenceVisited) {
+            if (criteria instanceof SimpleCriteriaContainer) {
+                ((SimpleCriteriaContainer) criteria).seal();
+            }
+            memo.put(key, criteria);
+        }
+        referenceVisited |= outerReferenceVisited;
+
+        return criteria;
+    }
+
+    private MemoKey memoKey(Node node) {
+        return new MemoKey(entityClass, isGroupElemMatch(), structuralKey(node));
+    }
+
+    /**
+     * Returns a normalized RSQL of the node, computed bottom-up from the
+     * keys of its children.
+     */
+    private String structuralKey(Node node) {
+        String key = keys.get(node);
+
+        if (key == null) {
+            StringBuilder sb = new StringBuilder();
+
+            if (node instanceof ComparisonNode) {
+                ComparisonNode comparison = (ComparisonNode) node;
+                sb.append(comparison.getSelector()).append(comparison.getOperator().getSymbol()).append('(');
+
+                for (String arg : comparison.getArguments()) {
+                    sb.append('\'').append(arg.replace("\\", "\\\\").replace("'", "\\'")).append("',");
+                }
+                sb.append(')');
+
+            } else {
+                char operator = node instanceof AndNode ? ';' : ',';
+                sb.append('(');
+
+                for (Node child : (LogicalNode) node) {
+                    sb.append(structuralKey(child)).append(operator);
+                }
+                sb.append(')');
+            }
+            key = sb.toString();
+            keys.put(node, key);
+        }
+        return key;
+    }
+
+
+    /**
+     * Key of the memo table. The settings of the visitor that affect the
+     * compiled criteria are held separately, so the structural key of the
+     * node is not copied into a new string for each node.
+     */
+    private static final class MemoKey {
+
+        private final Class<?> entityClass;
+        private final boolean groupElemMatch;
+        private final String structuralKey;
+        private final int hash;
+
+        MemoKey(Class<?> entityClass, boolean groupElemMatch, String structuralKey) {
+            this.entityClass = entityClass;
+            this.groupElemMatch = groupElemMatch;
+            this.structuralKey = structuralKey;
+            this.hash = (31 * entityClass.hashCode() + (groupElemMatch ? 1 : 0)) * 31 + structuralKey.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof MemoKey)) {
+                return false;
+            }
+            MemoKey other = (MemoKey) obj;
+            return hash == other.hash && entityClass == other.entityClass
+                    && groupElemMatch == other.groupElemMatch && structuralKey.equals(other.structuralKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
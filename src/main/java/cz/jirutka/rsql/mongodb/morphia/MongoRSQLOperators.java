@@ -32,10 +32,25 @@ public abstract class MongoRSQLOperators extends RSQLOperators {
 
     public static final ComparisonOperator ALL = new ComparisonOperator("=all=", true);
 
+    /**
+     * Geospatial proximity: <tt>field=near=(lng,lat)</tt> or
+     * <tt>field=near=(lng,lat,maxDistance)</tt>, where the distance is in meters.
+     */
+    public static final ComparisonOperator NEAR = new ComparisonOperator("=near=", true);
+
+    /**
+     * Geospatial inclusion: <tt>field=within=(lng,lat,radius)</tt> for a circle
+     * with radius in meters, or <tt>field=within=(lng1,lat1,lng2,lat2)</tt>
+     * for a box given by two opposite corners.
+     */
+    public static final ComparisonOperator WITHIN = new ComparisonOperator("=within=", true);
+
 
     public static Set<ComparisonOperator> mongoOperators() {
         Set<ComparisonOperator> set = defaultOperators();
         set.add(ALL);
+        set.add(NEAR);
+        set.add(WITHIN);
         return set;
     }
 }
@@ -0,0 +1,42 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import net.jcip.annotations.Immutable;
+import org.mongodb.morphia.query.Criteria;
+
+/**
+ * {@link FilterEmitter} that emits Morphia {@link Criteria}. The compiled
+ * filter is already a tree of Morphia criteria, i.e. Morphia's criteria are
+ * the intermediate form of the compiled filters, so this emitter just
+ * returns it. It's useful as an identity emitter where a
+ * {@code FilterEmitter} is expected.
+ */
+@Immutable
+public class MorphiaCriteriaEmitter implements FilterEmitter<Criteria> {
+
+    public Criteria emit(Criteria compiled) {
+        return compiled;
+    }
+}
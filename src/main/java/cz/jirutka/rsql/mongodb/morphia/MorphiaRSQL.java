@@ -26,9 +26,51 @@ package cz.jirutka.rsql.mongodb.morphia;
 import org.mongodb.morphia.query.Criteria;
 import org.mongodb.morphia.query.Query;
 
+import java.util.Collection;
+import java.util.List;
+
 public interface MorphiaRSQL {
 
     Criteria createCriteria(String rsql, Class<?> entityClass);
 
     <T> Query<T> createQuery(String rsql, Class<T> entityClass);
+
+    /**
+     * Creates a query that retrieves only the given fields, i.e. it loads
+     * partially populated entities.
+     *
+     * @param fields The fields to retrieve, using the same names and dot
+     *               notation as selectors in RSQL.
+     * @throws RSQLValidationException If some of the fields does not exist,
+     *         goes through a reference, or overlaps with another field.
+     * @see #createProjection(Collection, Class)
+     */
+    <T> Query<T> createQuery(String rsql, Class<T> entityClass, Collection<String> fields);
+
+    /**
+     * Resolves the fields against the entity mapping and creates a projection.
+     * Unless the entity class is final, the projection includes also the
+     * {@code className} field.
+     *
+     * @param fields The fields to retrieve, using the same names and dot
+     *               notation as selectors in RSQL.
+     * @throws RSQLValidationException If some of the fields does not exist,
+     *         goes through a reference, or overlaps with another field.
+     */
+    FieldProjection createProjection(Collection<String> fields, Class<?> entityClass);
+
+    /**
+     * Compiles the RSQL and emits it using the given emitter, e.g.
+     * {@link DBObjectFilterEmitter} to get a filter document for the driver,
+     * or {@link CanonicalFilterEmitter} to get a normalized string of the filter.
+     */
+    <R> R createFilter(String rsql, Class<?> entityClass, FilterEmitter<R> emitter);
+
+    /**
+     * Validates the RSQL against the entity class and returns all the found
+     * errors, i.e. it doesn't stop on the first invalid comparison.
+     *
+     * @return A list of errors, empty if the RSQL is valid.
+     */
+    List<RSQLException> validate(String rsql, Class<?> entityClass);
 }
@@ -23,6 +23,9 @@
  */
 package cz.jirutka.rsql.mongodb.morphia;
 
+import cz.jirutka.rsql.mongodb.morphia.internal.BoundedCache;
+import cz.jirutka.rsql.mongodb.morphia.internal.MappedFieldPathResolver;
+import cz.jirutka.rsql.mongodb.morphia.internal.SimpleCriteriaContainer;
 import cz.jirutka.rsql.parser.RSQLParser;
 import cz.jirutka.rsql.parser.RSQLParserException;
 import cz.jirutka.rsql.parser.ast.Node;
@@ -32,21 +35,91 @@ import org.mongodb.morphia.Datastore;
 import org.mongodb.morphia.DatastoreImpl;
 import org.mongodb.morphia.mapping.Mapper;
 import org.mongodb.morphia.query.Criteria;
+import org.mongodb.morphia.query.CriteriaJoin;
 import org.mongodb.morphia.query.Query;
 
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 public class MorphiaRSQLImpl implements MorphiaRSQL {
 
     @Getter
     private final Datastore datastore;
 
-    @Getter @Setter
+    @Getter
     private StringConverter converter = new DefaultStringConverter();
 
-    @Getter @Setter
+    @Getter
     private RSQLParser rsqlParser = new RSQLParser(MongoRSQLOperators.mongoOperators());
 
+    /**
+     * The finder used for selectors that go through a reference, e.g.
+     * <tt>owner.country==CZ</tt>. Such selectors are evaluated by querying
+     * the referenced collection when the criteria is created, so they are
+     * disallowed by default ({@code null}); set e.g.
+     * {@link DefaultReferencedIdsFinder} to enable them.
+     */
+    @Getter @Setter
+    private ReferencedIdsFinder referencedIdsFinder;
+
+    /**
+     * @see MorphiaRSQLVisitor#setGroupElemMatch(boolean)
+     */
+    @Getter @Setter
+    private boolean groupElemMatch = false;
+
+    /**
+     * When set, the filter provided by it is injected into every criteria
+     * created by this object. Its comparisons are flattened into the root
+     * AND and placed before the comparisons of the user's filter. The
+     * compiled mandatory filter is cached, unless it goes through a reference.
+     */
+    @Getter @Setter
+    private MandatoryFilterProvider mandatoryFilterProvider;
+
+    /**
+     * Whether to memoize the compiled sub-trees of filters, so a filter that
+     * differs from a recently compiled one only in some comparisons is
+     * compiled incrementally. This is useful for interactive query builders
+     * that compile the filter on each change. Default is {@code false}.
+     *
+     * @see #clearCompiledCaches()
+     */
+    @Getter @Setter
+    private boolean incrementalCompilation = false;
+
+    /**
+     * Whether to fill in the stack trace of the {@link RSQLException}s thrown
+     * by this object. Invalid filters are usually caused by clients, so
+     * disabling it makes handling of untrusted filters cheaper. Default is
+     * {@code true}.
+     */
+    @Getter @Setter
+    private boolean stackTraceEnabled = true;
+
+    /**
+     * When set, the queries created by this object are passed to it for
+     * sampling (see {@link QueryDiagnostics#sample(String, Query)}). Note
+     * that a sort order or limit applied to the query later is not
+     * explained. Default is {@code null}, i.e. no diagnostics.
+     */
+    @Getter @Setter
+    private QueryDiagnostics queryDiagnostics;
+
+    // compiled mandatory filters
+    private final BoundedCache<String, List<Criteria>> mandatoryCriteriaCache = new BoundedCache<>(256, 0);
+
+    // compiled sub-trees of filters, used when incrementalCompilation is enabled
+    private final BoundedCache<Object, Criteria> compiledNodesCache = new BoundedCache<>(4096, 0);
+
     // lazy initialized
     private Mapper mapper;
+    private MappedFieldPathResolver fieldPathResolver;
 
 
     public MorphiaRSQLImpl(Datastore datastore) {
@@ -56,23 +129,143 @@ public class MorphiaRSQLImpl implements MorphiaRSQL {
 
     public Criteria createCriteria(String rsql, Class<?> entityClass) {
 
-        Node rootNode = parse(rsql);
+        Boolean previous = RSQLException.setStackTraceEnabled(stackTraceEnabled);
+        try {
+            return compileCriteria(rsql, entityClass);
+        } finally {
+            RSQLException.setStackTraceEnabled(previous);
+        }
+    }
 
-        MorphiaRSQLVisitor visitor = new MorphiaRSQLVisitor(entityClass, getMapper(), converter);
+    public <T> Query<T> createQuery(String rsql, Class<T> entityClass) {
 
-        return rootNode.accept(visitor);
+        Query<T> query = datastore.createQuery(entityClass);
+
+        query.and(createCriteria(rsql, entityClass));
+
+        return sampled(rsql, query);
     }
 
-    public <T> Query<T> createQuery(String rsql, Class<T> entityClass) {
+    public <T> Query<T> createQuery(String rsql, Class<T> entityClass, Collection<String> fields) {
+
+        FieldProjection projection = createProjection(fields, entityClass);
 
         Query<T> query = datastore.createQuery(entityClass);
 
         query.and(createCriteria(rsql, entityClass));
+        // Morphia adds className to the included fields by itself
+        query.retrievedFields(true, projection.getFieldPaths());
 
-        return query;
+        return sampled(rsql, query);
+    }
+
+    public FieldProjection createProjection(Collection<String> fields, Class<?> entityClass) {
+
+        Boolean previous = RSQLException.setStackTraceEnabled(stackTraceEnabled);
+        try {
+            Map<String, String> paths = new LinkedHashMap<>(fields.size());
+            for (String field : fields) {
+                String path = getFieldPathResolver().resolveProjectionPath(field, entityClass);
+
+                for (Map.Entry<String, String> other : paths.entrySet()) {
+                    if (isAncestorPath(path, other.getValue()) || isAncestorPath(other.getValue(), path)) {
+                        throw new RSQLValidationException(field, null,
+                                "Projected field %s overlaps with %s", field, other.getKey());
+                    }
+                }
+                paths.put(field, path);
+            }
+            // className is needed to instantiate the right (sub)class
+            return new FieldProjection(paths, !Modifier.isFinal(entityClass.getModifiers()));
+
+        } finally {
+            RSQLException.setStackTraceEnabled(previous);
+        }
+    }
+
+    public <R> R createFilter(String rsql, Class<?> entityClass, FilterEmitter<R> emitter) {
+        return emitter.emit(createCriteria(rsql, entityClass));
+    }
+
+    public List<RSQLException> validate(String rsql, Class<?> entityClass) {
+
+        Boolean previous = RSQLException.setStackTraceEnabled(stackTraceEnabled);
+        try {
+            Node rootNode;
+            try {
+                rootNode = parse(rsql);
+            } catch (RSQLException ex) {
+                return Collections.singletonList(ex);
+            }
+            List<RSQLException> errors = new ArrayList<>();
+
+            rootNode.accept(new ErrorCollectingRSQLVisitor(
+                    entityClass, getMapper(), converter, getFieldPathResolver(), referencedIdsFinder != null, errors));
+
+            return errors;
+
+        } finally {
+            RSQLException.setStackTraceEnabled(previous);
+        }
+    }
+
+    /**
+     * Sets the converter for arguments and clears the compiled filters,
+     * which contain the converted arguments.
+     *
+     * @see #clearCompiledCaches()
+     */
+    public void setConverter(StringConverter converter) {
+        this.converter = converter;
+        clearCompiledCaches();
+    }
+
+    /**
+     * Sets the parser and clears the compiled filters, which may be parsed
+     * differently with it (e.g. with other operators).
+     *
+     * @see #clearCompiledCaches()
+     */
+    public void setRsqlParser(RSQLParser rsqlParser) {
+        this.rsqlParser = rsqlParser;
+        clearCompiledCaches();
+    }
+
+    /**
+     * Clears the cached compiled filters (mandatory filters and memoized
+     * sub-trees). It's called automatically when the converter or the parser
+     * is changed; call it explicitly after changing state they depend on,
+     * e.g. the configuration of the converter itself.
+     */
+    public void clearCompiledCaches() {
+        mandatoryCriteriaCache.clear();
+        compiledNodesCache.clear();
     }
 
 
+    protected Criteria compileCriteria(String rsql, Class<?> entityClass) {
+
+        Node rootNode = parse(rsql);
+
+        MorphiaRSQLVisitor visitor = incrementalCompilation
+                ? new MemoizingRSQLVisitor(entityClass, getMapper(), converter, getFieldPathResolver(),
+                                           referencedIdsFinder, compiledNodesCache)
+                : new MorphiaRSQLVisitor(entityClass, getMapper(), converter, getFieldPathResolver(),
+                                         referencedIdsFinder);
+        visitor.setGroupElemMatch(groupElemMatch);
+
+        Criteria criteria = rootNode.accept(visitor);
+
+        if (mandatoryFilterProvider != null) {
+            String mandatoryFilter = mandatoryFilterProvider.getMandatoryFilter(entityClass);
+
+            if (mandatoryFilter != null) {
+                criteria = injectMandatoryCriteria(criteria, mandatoryFilter, entityClass);
+            }
+        }
+        return criteria;
+    }
+
     protected Node parse(String rsql) {
         try {
             return rsqlParser.parse(rsql);
@@ -82,6 +275,58 @@ public class MorphiaRSQLImpl implements MorphiaRSQL {
         }
     }
 
+    /**
+     * Joins the compiled mandatory filter with the given criteria into a
+     * single (flat) AND container, mandatory comparisons first.
+     */
+    protected Criteria injectMandatoryCriteria(Criteria criteria, String mandatoryFilter, Class<?> entityClass) {
+
+        String cacheKey = entityClass.getName() + (groupElemMatch ? "+elemMatch:" : ":") + mandatoryFilter;
+        List<Criteria> mandatory = mandatoryCriteriaCache.get(cacheKey);
+
+        if (mandatory == null) {
+            TrackingReferencedIdsFinder finder = referencedIdsFinder != null
+                    ? new TrackingReferencedIdsFinder(referencedIdsFinder) : null;
+
+            MorphiaRSQLVisitor visitor = new MorphiaRSQLVisitor(
+                    entityClass, getMapper(), converter, getFieldPathResolver(), finder);
+            visitor.setGroupElemMatch(groupElemMatch);
+
+            mandatory = flattenConjunction(parse(mandatoryFilter).accept(visitor));
+
+            // found ids of referenced entities must not outlive the finder's cache
+            if (finder == null || !finder.used) {
+                mandatoryCriteriaCache.put(cacheKey, mandatory);
+            }
+        }
+
+        SimpleCriteriaContainer root = new SimpleCriteriaContainer(CriteriaJoin.AND, mandatory);
+        for (Criteria child : flattenConjunction(criteria)) {
+            root.add(child);
+        }
+        return root;
+    }
+
+    private List<Criteria> flattenConjunction(Criteria criteria) {
+
+        if (criteria instanceof SimpleCriteriaContainer
+                && ((SimpleCriteriaContainer) criteria).getJoinMethod() == CriteriaJoin.AND) {
+            return ((SimpleCriteriaContainer) criteria).getChildren();
+        }
+        return Collections.singletonList(criteria);
+    }
+
+    private static boolean isAncestorPath(String ancestor, String path) {
+        return path.startsWith(ancestor + '.');
+    }
+
+    private <T> Query<T> sampled(String rsql, Query<T> query) {
+        if (queryDiagnostics != null) {
+            queryDiagnostics.sample(rsql, query);
+        }
+        return query;
+    }
+
     private Mapper getMapper() {
         if (mapper == null) {
             if (! (datastore instanceof DatastoreImpl)) {
@@ -91,4 +336,30 @@ public class MorphiaRSQLImpl implements MorphiaRSQL {
         }
         return mapper;
     }
+
+    private MappedFieldPathResolver getFieldPathResolver() {
+        if (fieldPathResolver == null) {
+            fieldPathResolver = new MappedFieldPathResolver(getMapper());
+        }
+        return fieldPathResolver;
+    }
+
+
+    /**
+     * Delegating finder that remembers whether it has been used.
+     */
+    private static class TrackingReferencedIdsFinder implements ReferencedIdsFinder {
+
+        private final ReferencedIdsFinder delegate;
+        private boolean used = false;
+
+        TrackingReferencedIdsFinder(ReferencedIdsFinder delegate) {
+            this.delegate = delegate;
+        }
+
+        public Collection<?> findIds(Class<?> entityClass, Criteria criteria) {
+            used = true;
+            return delegate.findIds(entityClass, criteria);
+        }
+    }
 }
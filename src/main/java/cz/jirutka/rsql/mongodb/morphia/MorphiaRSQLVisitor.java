@@ -1,10 +1,16 @@
 package cz.jirutka.rsql.mongodb.morphia;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 import cz.jirutka.rsql.mongodb.morphia.internal.MappedFieldPath;
 import cz.jirutka.rsql.mongodb.morphia.internal.MappedFieldPathResolver;
+import cz.jirutka.rsql.mongodb.morphia.internal.ReferenceCriteria;
+import cz.jirutka.rsql.mongodb.morphia.internal.ReferencedFieldPath;
 import cz.jirutka.rsql.mongodb.morphia.internal.SimpleCriteriaContainer;
 import cz.jirutka.rsql.mongodb.morphia.internal.SimpleFieldCriteria;
 import cz.jirutka.rsql.parser.ast.*;
+import lombok.Getter;
+import lombok.Setter;
 import net.jcip.annotations.ThreadSafe;
 import org.mongodb.morphia.mapping.Mapper;
 import org.mongodb.morphia.query.Criteria;
@@ -12,10 +18,17 @@ import org.mongodb.morphia.query.CriteriaContainer;
 import org.mongodb.morphia.query.CriteriaJoin;
 import org.mongodb.morphia.query.FilterOperator;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import static java.util.Arrays.asList;
 import static org.mongodb.morphia.query.CriteriaJoin.AND;
 import static org.mongodb.morphia.query.CriteriaJoin.OR;
 
@@ -38,8 +51,15 @@ public class MorphiaRSQLVisitor extends NoArgRSQLVisitorAdapter<Criteria> {
             put( MongoRSQLOperators.NOT_EQUAL,             FilterOperator.NOT_EQUAL             );
             put( MongoRSQLOperators.NOT_IN,                FilterOperator.NOT_IN                );
             put( MongoRSQLOperators.ALL,                   FilterOperator.ALL                   );
+            put( MongoRSQLOperators.NEAR,                  FilterOperator.NEAR_SPHERE           );
+            put( MongoRSQLOperators.WITHIN,                FilterOperator.GEO_WITHIN            );
     }};
 
+    /**
+     * Mean radius of the Earth in meters, used to convert distances to radians.
+     */
+    private static final double EARTH_RADIUS = 6371008.8;
+
     private final Class<?> entityClass;
 
     private final Mapper mapper;
@@ -48,11 +68,29 @@ public class MorphiaRSQLVisitor extends NoArgRSQLVisitorAdapter<Criteria> {
 
     private final MappedFieldPathResolver fieldPathResolver;
 
+    private final ReferencedIdsFinder referencedIdsFinder;
+
+    /**
+     * Whether to group comparisons joined by AND that go through the same
+     * list of embedded documents into a single {@code $elemMatch}, so they
+     * must be satisfied by the same element of the list. For example,
+     * <tt>actors.name==Keanu;actors.birthdate=lt=1970-01-01</tt> is then
+     * translated to <tt>{actors: {$elemMatch: {name: ..., birthdate: ...}}}</tt>.
+     * Default is {@code false}.
+     */
+    @Getter @Setter
+    private volatile boolean groupElemMatch = false;
+
 
     public MorphiaRSQLVisitor(Class<?> entityClass, Mapper mapper, StringConverter converter) {
         this(entityClass, mapper, converter, new MappedFieldPathResolver(mapper));
     }
 
+    public MorphiaRSQLVisitor(Class<?> entityClass, Mapper mapper, StringConverter converter,
+                              MappedFieldPathResolver fieldPathResolver) {
+        this(entityClass, mapper, converter, fieldPathResolver, null);
+    }
+
     /**
      * Creates a new instance of {@code MorphiaRSQLVisitor} for the specified
      * entity class.
@@ -63,13 +101,18 @@ public class MorphiaRSQLVisitor extends NoArgRSQLVisitorAdapter<Criteria> {
      *               a field type.
      * @param converter
      * @param fieldPathResolver
+     * @param referencedIdsFinder The finder used to evaluate comparisons on
+     *                            fields of referenced entities, or {@code null}
+     *                            to disallow selectors that go through a
+     *                            {@link org.mongodb.morphia.annotations.Reference Reference}.
      */
     public MorphiaRSQLVisitor(Class<?> entityClass, Mapper mapper, StringConverter converter,
-                              MappedFieldPathResolver fieldPathResolver) {
+                              MappedFieldPathResolver fieldPathResolver, ReferencedIdsFinder referencedIdsFinder) {
         this.entityClass = entityClass;
         this.mapper = mapper;
         this.converter = converter;
         this.fieldPathResolver = fieldPathResolver;
+        this.referencedIdsFinder = referencedIdsFinder;
     }
 
 
@@ -82,7 +125,12 @@ public class MorphiaRSQLVisitor extends NoArgRSQLVisitorAdapter<Criteria> {
     }
 
     public Criteria visit(ComparisonNode node) {
-        return createCriteria(node, OPERATORS_MAP.get(node.getOperator()));
+        ReferencedFieldPath rfp = resolveReferencedFieldPath(node.getSelector());
+
+        if (rfp != null) {
+            return createReferenceCriteria(rfp, Collections.<Node>singletonList(toReferencedNode(node, rfp)));
+        }
+        return createComparisonCriteria(node);
     }
 
 
@@ -99,9 +147,158 @@ public class MorphiaRSQLVisitor extends NoArgRSQLVisitorAdapter<Criteria> {
     protected Criteria createCriteria(ComparisonNode node, FilterOperator operator) {
 
         MappedFieldPath mfp = resolveFieldPath(node.getSelector());
-        Object mappedValue = convertToMappedValue(node.getArguments(), mfp, !node.getOperator().isMultiValue());
+        try {
+            Object mappedValue = convertToMappedValue(node.getArguments(), mfp, !node.getOperator().isMultiValue());
 
-        return new SimpleFieldCriteria(mfp.getFieldPath(), operator, mappedValue);
+            return new SimpleFieldCriteria(mfp.getFieldPath(), operator, mappedValue);
+
+        } catch (RSQLException ex) {
+            throw ex.withSelector(node.getSelector());
+        }
+    }
+
+    /**
+     * Creates a geospatial criteria for the given node. The arguments are
+     * converted to {@code Double} and assembled into a GeoJSON geometry,
+     * so the field should be indexed with a <tt>2dsphere</tt> index.
+     *
+     * @param node The comparison node with {@link MongoRSQLOperators#NEAR NEAR}
+     *             or {@link MongoRSQLOperators#WITHIN WITHIN} operator.
+     * @param operator The (Morphia) operator to create criteria for, i.e.
+     *                 {@link FilterOperator#NEAR_SPHERE} or {@link FilterOperator#GEO_WITHIN}.
+     * @return A field criteria for the given geospatial comparison.
+     *
+     * @throws RSQLValidationException If the node contains unexpected number
+     *         of arguments, or a matching field for the selector cannot be found.
+     * @throws RSQLArgumentFormatException If some of the arguments is not
+     *         a number, a coordinate is out of range or a distance is negative.
+     */
+    protected Criteria createGeoCriteria(ComparisonNode node, FilterOperator operator) {
+
+        MappedFieldPath mfp = resolveFieldPath(node.getSelector());
+        List<Double> args;
+        try {
+            args = new ArrayList<>(converter.convert(node.getArguments(), Double.class));
+        } catch (RSQLException ex) {
+            throw ex.withSelector(node.getSelector());
+        }
+
+        DBObject value = operator == FilterOperator.NEAR_SPHERE
+                ? createNearSphereValue(node.getSelector(), args)
+                : createGeoWithinValue(node.getSelector(), args);
+
+        checkGeoArguments(node, args);
+
+        return new SimpleFieldCriteria(mfp.getFieldPath(), operator, value);
+    }
+
+    /**
+     * Creates an {@code $elemMatch} criteria for the given criteria that
+     * all refer to fields inside the same list of embedded documents.
+     * Criteria that go through the same nested list are grouped into
+     * a nested {@code $elemMatch}.
+     *
+     * @param listPath The resolved path of the embedded list.
+     * @param criteria The field criteria with paths prefixed by the listPath.
+     * @return A field criteria for the embedded list.
+     */
+    protected Criteria createElemMatchCriteria(String listPath, List<Criteria> criteria) {
+
+        // key is a path of the nested list to group by, or the criteria itself
+        Map<Object, List<Criteria>> groups = new LinkedHashMap<>();
+
+        for (Criteria c : criteria) {
+            Object key = c;
+
+            String fieldPath = ((SimpleFieldCriteria) c).getFieldName();
+            for (String path : fieldPathResolver.resolveEmbeddedListPaths(fieldPath, entityClass)) {
+                if (path.length() > listPath.length()) {
+                    key = path;
+                    break;
+                }
+            }
+            if (!groups.containsKey(key)) {
+                groups.put(key, new ArrayList<Criteria>());
+            }
+            groups.get(key).add(c);
+        }
+
+        List<Criteria> inner = new ArrayList<>(criteria.size());
+        for (Map.Entry<Object, List<Criteria>> entry : groups.entrySet()) {
+            List<Criteria> group = entry.getValue();
+
+            if (entry.getKey() instanceof String && group.size() > 1) {
+                group = Collections.singletonList(createElemMatchCriteria((String) entry.getKey(), group));
+            }
+            for (Criteria c : group) {
+                SimpleFieldCriteria fc = (SimpleFieldCriteria) c;
+                String relativePath = fc.getFieldName().substring(listPath.length() + 1);
+
+                inner.add(new SimpleFieldCriteria(relativePath, fc.getOperator(), fc.getValue()));
+            }
+        }
+        DBObject value = new BasicDBObject();
+        new SimpleCriteriaContainer(AND, inner).addTo(value);
+
+        return new SimpleFieldCriteria(listPath, FilterOperator.ELEMENT_MATCH, value);
+    }
+
+    /**
+     * Creates a criteria for comparisons on fields of the referenced entity.
+     * The comparisons are evaluated by the {@link ReferencedIdsFinder} in one
+     * query on the referenced entity's collection and the resulting ids are
+     * matched using {@code $in}.
+     *
+     * @param rfp The resolved path of the reference.
+     * @param nodes The comparison nodes with selectors relative to the
+     *              referenced entity; they are joined by AND.
+     * @return A field criteria for the reference.
+     */
+    protected Criteria createReferenceCriteria(ReferencedFieldPath rfp, List<Node> nodes) {
+
+        Node subNode = nodes.size() == 1 ? nodes.get(0) : new AndNode(nodes);
+
+        MorphiaRSQLVisitor visitor = createReferencedEntityVisitor(rfp.getReferencedClass());
+        Criteria subCriteria;
+        try {
+            subCriteria = subNode.accept(visitor);
+        } catch (RSQLException ex) {
+            // report the user's selector, not the one relative to the referenced entity
+            throw ex.withSelectorPrefix(rfp.getSelectorPrefix());
+        }
+        Collection<?> ids = referencedIdsFinder.findIds(rfp.getReferencedClass(), subCriteria);
+
+        Set<Class<?>> referencedClasses = new HashSet<>(ReferenceCriteria.collectReferencedClasses(subCriteria));
+        referencedClasses.add(rfp.getReferencedClass());
+
+        return new ReferenceCriteria(rfp.getFieldPath(), ids, referencedClasses);
+    }
+
+    /**
+     * Creates a visitor for comparisons on fields of the referenced entity.
+     */
+    protected MorphiaRSQLVisitor createReferencedEntityVisitor(Class<?> referencedClass) {
+
+        MorphiaRSQLVisitor visitor = new MorphiaRSQLVisitor(
+                referencedClass, mapper, converter, fieldPathResolver, referencedIdsFinder);
+        visitor.setGroupElemMatch(groupElemMatch);
+
+        return visitor;
+    }
+
+    /**
+     * Resolves a path that goes through a reference, if any.
+     *
+     * @return The referenced field path, or {@code null} if the selector
+     *         doesn't go through a reference or no {@link ReferencedIdsFinder}
+     *         is set.
+     */
+    protected ReferencedFieldPath resolveReferencedFieldPath(String selector) {
+
+        if (referencedIdsFinder == null || selector.indexOf('.') < 0) {
+            return null;
+        }
+        return fieldPathResolver.resolveReferencedFieldPath(selector, entityClass);
     }
 
     /**
@@ -135,12 +332,178 @@ public class MorphiaRSQLVisitor extends NoArgRSQLVisitorAdapter<Criteria> {
     }
 
 
+    private DBObject createNearSphereValue(String selector, List<Double> args) {
+
+        if (args.size() != 2 && args.size() != 3) {
+            throw new RSQLValidationException(selector, null,
+                    "Operator =near= on '%s' expects (lng,lat) or (lng,lat,maxDistance), but got %d arguments",
+                    selector, args.size());
+        }
+        DBObject value = new BasicDBObject("$geometry", createPoint(args.get(0), args.get(1)));
+
+        if (args.size() == 3) {
+            value.put("$maxDistance", args.get(2));
+        }
+        return value;
+    }
+
+    private DBObject createGeoWithinValue(String selector, List<Double> args) {
+
+        if (args.size() == 3) {
+            List<?> center = asList(args.get(0), args.get(1));
+            return new BasicDBObject("$centerSphere", asList(center, args.get(2) / EARTH_RADIUS));
+
+        } else if (args.size() == 4) {
+            double x1 = args.get(0), y1 = args.get(1), x2 = args.get(2), y2 = args.get(3);
+            List<?> ring = asList(asList(x1, y1), asList(x2, y1), asList(x2, y2), asList(x1, y2), asList(x1, y1));
+
+            return new BasicDBObject("$geometry", new BasicDBObject("type", "Polygon")
+                    .append("coordinates", asList(ring)));
+        }
+        throw new RSQLValidationException(selector, null,
+                "Operator =within= on '%s' expects (lng,lat,radius) or (lng1,lat1,lng2,lat2), but got %d arguments",
+                selector, args.size());
+    }
+
+    /**
+     * Checks that the arguments (already validated for their count) are
+     * pairs of longitude and latitude, optionally followed by a distance.
+     */
+    private void checkGeoArguments(ComparisonNode node, List<Double> args) {
+
+        int coordinates = args.size() == 4 ? 4 : 2;
+
+        for (int i = 0; i < args.size(); i++) {
+            double arg = args.get(i);
+            String message = null;
+
+            if (i >= coordinates && arg < 0) {
+                message = "Distance must not be negative, but got: %s";
+            } else if (i < coordinates && i % 2 == 0 && (arg < -180 || arg > 180)) {
+                message = "Longitude must be between -180 and 180, but got: %s";
+            } else if (i < coordinates && i % 2 == 1 && (arg < -90 || arg > 90)) {
+                message = "Latitude must be between -90 and 90, but got: %s";
+            }
+            if (message != null) {
+                String value = node.getArguments().get(i);
+                throw new RSQLArgumentFormatException(value, Double.class, message, value)
+                        .withSelector(node.getSelector());
+            }
+        }
+    }
+
+    private DBObject createPoint(double lng, double lat) {
+        return new BasicDBObject("type", "Point").append("coordinates", asList(lng, lat));
+    }
+
     private Criteria joinChildrenNodesInContainer(LogicalNode node, CriteriaJoin cj) {
 
         CriteriaContainer parent = new SimpleCriteriaContainer(cj);
-        for (Node child : node) {
-            parent.add( child.accept(this) );
+
+        if (cj == AND) {
+            for (Criteria criteria : visitConjunctionChildren(node)) {
+                parent.add(criteria);
+            }
+        } else {
+            for (Node child : node) {
+                parent.add( child.accept(this) );
+            }
         }
         return parent;
     }
+
+    /**
+     * Visits children of the AND node; comparisons that go through the same
+     * reference are grouped into a single lookup and (if enabled) comparisons
+     * that go through the same embedded list are grouped into $elemMatch,
+     * except the negated and geospatial ones.
+     */
+    private List<Criteria> visitConjunctionChildren(LogicalNode node) {
+
+        // key is a path of the reference or embedded list to group by,
+        // or the node itself if it should not be grouped
+        Map<Object, List<Node>> groups = new LinkedHashMap<>();
+        Map<Object, ReferencedFieldPath> references = new HashMap<>();
+
+        for (Node child : node) {
+            Object key = child;
+
+            if (child instanceof ComparisonNode) {
+                ComparisonNode comparison = (ComparisonNode) child;
+                ReferencedFieldPath rfp = resolveReferencedFieldPath(comparison.getSelector());
+
+                if (rfp != null) {
+                    key = rfp.getFieldPath();
+                    references.put(key, rfp);
+                    child = toReferencedNode(comparison, rfp);
+
+                } else if (groupElemMatch && isElemMatchable(comparison.getOperator())) {
+                    List<String> listPaths = fieldPathResolver.resolveEmbeddedListPaths(comparison.getSelector(), entityClass);
+                    if (!listPaths.isEmpty()) {
+                        key = listPaths.get(0);
+                    }
+                }
+            }
+            if (!groups.containsKey(key)) {
+                groups.put(key, new ArrayList<Node>());
+            }
+            groups.get(key).add(child);
+        }
+
+        List<Criteria> result = new ArrayList<>(groups.size());
+        for (Map.Entry<Object, List<Node>> entry : groups.entrySet()) {
+            Object key = entry.getKey();
+            List<Node> group = entry.getValue();
+
+            if (references.containsKey(key)) {
+                result.add(createReferenceCriteria(references.get(key), group));
+
+            } else if (key instanceof String && group.size() > 1) {
+                result.add(createElemMatchCriteria((String) key, visitEach(group)));
+
+            } else {
+                result.addAll(visitEach(group));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Visits the given nodes that are known to not go through a reference.
+     */
+    private List<Criteria> visitEach(List<Node> nodes) {
+
+        List<Criteria> result = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            result.add(node instanceof ComparisonNode
+                    ? createComparisonCriteria((ComparisonNode) node)
+                    : node.accept(this));
+        }
+        return result;
+    }
+
+    private Criteria createComparisonCriteria(ComparisonNode node) {
+        ComparisonOperator operator = node.getOperator();
+
+        if (operator.equals(MongoRSQLOperators.NEAR) || operator.equals(MongoRSQLOperators.WITHIN)) {
+            return createGeoCriteria(node, OPERATORS_MAP.get(operator));
+        }
+        return createCriteria(node, OPERATORS_MAP.get(operator));
+    }
+
+    /**
+     * Negated operators mean something else inside $elemMatch (e.g. an
+     * element that is not equal, instead of no element that is equal) and
+     * geospatial operators are not allowed there.
+     */
+    private boolean isElemMatchable(ComparisonOperator operator) {
+        return !operator.equals(MongoRSQLOperators.NOT_EQUAL)
+                && !operator.equals(MongoRSQLOperators.NOT_IN)
+                && !operator.equals(MongoRSQLOperators.NEAR)
+                && !operator.equals(MongoRSQLOperators.WITHIN);
+    }
+
+    private ComparisonNode toReferencedNode(ComparisonNode node, ReferencedFieldPath rfp) {
+        return new ComparisonNode(node.getOperator(), rfp.getSubSelector(), node.getArguments());
+    }
 }
@@ -0,0 +1,627 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import cz.jirutka.rsql.mongodb.morphia.internal.MappedFieldPath;
+import cz.jirutka.rsql.mongodb.morphia.internal.MappedFieldPathResolver;
+import cz.jirutka.rsql.mongodb.morphia.internal.SimpleCriteriaContainer;
+import cz.jirutka.rsql.mongodb.morphia.internal.SimpleFieldCriteria;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+import net.jcip.annotations.ThreadSafe;
+import org.bson.types.ObjectId;
+import org.mongodb.morphia.AdvancedDatastore;
+import org.mongodb.morphia.DatastoreImpl;
+import org.mongodb.morphia.mapping.MappedClass;
+import org.mongodb.morphia.mapping.MappedField;
+import org.mongodb.morphia.mapping.Mapper;
+import org.mongodb.morphia.query.Criteria;
+import org.mongodb.morphia.query.CriteriaJoin;
+import org.mongodb.morphia.query.FilterOperator;
+import org.mongodb.morphia.query.MorphiaIterator;
+import org.mongodb.morphia.query.Query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Executes RSQL queries over an entity class that is partitioned into
+ * multiple collections by ranges of a partition key, e.g. monthly
+ * collections of events partitioned by a timestamp.
+ *
+ * <p>Partitions whose range doesn't overlap with the range comparisons on
+ * the partition key in the root AND of the compiled filter are pruned. The
+ * query is executed on the remaining partitions in parallel (at most
+ * {@code maxConcurrency} at once) and the results are merged on the
+ * requested sort keys, comparing values of different types in the same
+ * order as MongoDB.</p>
+ */
+@ThreadSafe
+public class PartitionedQueryExecutor {
+
+    public static final int DEFAULT_MAX_RESULTS = 10000;
+
+    private final AdvancedDatastore datastore;
+
+    private final MorphiaRSQL morphiaRSQL;
+
+    private final ExecutorService executor;
+
+    private final ConcurrentMap<Class<?>, PartitionScheme> schemes = new ConcurrentHashMap<>();
+
+    /**
+     * The maximal number of entities that a query without limit may match;
+     * when it matches more, it fails rather than silently returning only
+     * some of them. Default is {@value #DEFAULT_MAX_RESULTS}.
+     */
+    @Getter @Setter
+    private volatile int maxResults = DEFAULT_MAX_RESULTS;
+
+
+    /**
+     * @param datastore The datastore to query the partitions on.
+     * @param morphiaRSQL The RSQL compiler.
+     * @param maxConcurrency The maximal number of partitions queried at once.
+     */
+    public PartitionedQueryExecutor(AdvancedDatastore datastore, MorphiaRSQL morphiaRSQL, int maxConcurrency) {
+        this(datastore, morphiaRSQL, Executors.newFixedThreadPool(maxConcurrency, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "rsql-partitioned-query");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * @param datastore The datastore to query the partitions on.
+     * @param morphiaRSQL The RSQL compiler.
+     * @param executor The executor to run the per-partition queries on; its
+     *                 number of threads bounds the concurrency.
+     */
+    public PartitionedQueryExecutor(AdvancedDatastore datastore, MorphiaRSQL morphiaRSQL, ExecutorService executor) {
+        this.datastore = datastore;
+        this.morphiaRSQL = morphiaRSQL;
+        this.executor = executor;
+    }
+
+
+    /**
+     * Registers partitions of the entity class.
+     *
+     * @param entityClass The entity class mapped to the partitions.
+     * @param partitionKey The partition key field name or a path of the
+     *                     field inside a subdocument(s), as used in RSQL.
+     * @param partitions The partitions; their ranges should not overlap.
+     *                   Numeric bounds are converted to the type of the
+     *                   partition key field.
+     * @throws RSQLValidationException If the partition key field doesn't exist.
+     * @throws IllegalArgumentException If type of a partition bound is not
+     *         compatible with type of the partition key field.
+     */
+    public void register(Class<?> entityClass, String partitionKey, Collection<Partition> partitions) {
+
+        MappedFieldPath mfp = new MappedFieldPathResolver(getMapper()).resolveFieldPath(partitionKey, entityClass);
+        Class<?> keyType = boxed(mfp.getTargetValueType());
+
+        List<Partition> converted = new ArrayList<>(partitions.size());
+        for (Partition partition : partitions) {
+            converted.add(new Partition(partition.getCollectionName(),
+                    convertBound(partition.getFrom(), keyType, partition),
+                    convertBound(partition.getTo(), keyType, partition)));
+        }
+        schemes.put(entityClass, new PartitionScheme(mfp.getFieldPath(), converted));
+    }
+
+    /**
+     * Finds entities matching the RSQL filter in all partitions that may
+     * contain them. The partitions are queried in parallel and their
+     * results are read and merged lazily, so at most {@code limit} (or
+     * {@link #getMaxResults() maxResults}) entities are loaded.
+     *
+     * @param rsql The RSQL filter.
+     * @param entityClass The partitioned entity class.
+     * @param order The sort order in Morphia syntax (see {@link Query#order(String)}),
+     *              or {@code null} to just concatenate the results.
+     * @param limit The maximal number of results, or zero for all results
+     *              up to {@link #getMaxResults() maxResults}; it's also
+     *              applied on each partition.
+     * @return The merged results.
+     * @throws IllegalArgumentException If no partitions are registered for
+     *         the entity class.
+     * @throws IllegalStateException If no limit is given and the filter
+     *         matches more than {@link #getMaxResults() maxResults} entities.
+     */
+    public <T> List<T> find(String rsql, final Class<T> entityClass, final String order, int limit) {
+
+        final Criteria criteria = morphiaRSQL.createCriteria(rsql, entityClass);
+        final int maxResults = this.maxResults;
+        // read one more entity than allowed to detect that there are more
+        final int maxCount = limit > 0 ? limit : maxResults + 1;
+
+        final OpenCursors openCursors = new OpenCursors();
+        List<Future<MorphiaIterator<T, T>>> futures = new ArrayList<>();
+        List<MorphiaIterator<T, T>> cursors = new ArrayList<>();
+        try {
+            for (final Partition partition : selectPartitions(entityClass, criteria)) {
+                futures.add(executor.submit(new Callable<MorphiaIterator<T, T>>() {
+                    public MorphiaIterator<T, T> call() {
+                        Query<T> query = datastore.createQuery(partition.getCollectionName(), entityClass);
+                        query.and(criteria);
+                        if (order != null) {
+                            query.order(order);
+                        }
+                        query.limit(maxCount);
+
+                        MorphiaIterator<T, T> cursor = (MorphiaIterator<T, T>) query.fetch();
+                        openCursors.add(cursor);
+                        cursor.hasNext();  // executes the query and loads the first batch
+
+                        return cursor;
+                    }
+                }));
+            }
+            for (Future<MorphiaIterator<T, T>> future : futures) {
+                cursors.add(future.get());
+            }
+            List<T> result = merge(cursors, order != null ? new OrderComparator(getMapper(), order) : null, maxCount);
+
+            if (limit <= 0 && result.size() > maxResults) {
+                throw new IllegalStateException(String.format(
+                        "Query '%s' matches more than %d entities, specify a limit", rsql, maxResults));
+            }
+            return result;
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while querying partitions", ex);
+
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof RuntimeException
+                    ? (RuntimeException) cause
+                    : new IllegalStateException("Failed to query partition", cause);
+
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            openCursors.closeAll();
+        }
+    }
+
+    /**
+     * Selects partitions of the entity class that may contain entities
+     * matching the compiled filter.
+     *
+     * @throws IllegalArgumentException If no partitions are registered for
+     *         the entity class.
+     */
+    public List<Partition> selectPartitions(Class<?> entityClass, Criteria compiled) {
+
+        PartitionScheme scheme = schemes.get(entityClass);
+        if (scheme == null) {
+            throw new IllegalArgumentException("No partitions registered for " + entityClass.getName());
+        }
+        KeyRange range = new KeyRange();
+
+        if (compiled instanceof SimpleFieldCriteria) {
+            range.restrict((SimpleFieldCriteria) compiled, scheme.partitionKey);
+
+        } else if (compiled instanceof SimpleCriteriaContainer
+                && ((SimpleCriteriaContainer) compiled).getJoinMethod() == CriteriaJoin.AND) {
+            for (Criteria child : ((SimpleCriteriaContainer) compiled).getChildren()) {
+                if (child instanceof SimpleFieldCriteria) {
+                    range.restrict((SimpleFieldCriteria) child, scheme.partitionKey);
+                }
+            }
+        }
+
+        List<Partition> result = new ArrayList<>(scheme.partitions.size());
+        for (Partition partition : scheme.partitions) {
+            if (range.overlaps(partition)) {
+                result.add(partition);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stops the executor.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+
+    /**
+     * Merges the sorted cursors using a k-way merge, reading them only up
+     * to the max count.
+     */
+    private <T> List<T> merge(List<? extends Iterator<T>> cursors, final Comparator<Object> comparator, int maxCount) {
+
+        List<T> result = new ArrayList<>();
+
+        if (comparator == null) {
+            for (Iterator<T> cursor : cursors) {
+                while (cursor.hasNext() && result.size() < maxCount) {
+                    result.add(cursor.next());
+                }
+            }
+            return result;
+        }
+
+        PriorityQueue<Head<T>> heads = new PriorityQueue<>(Math.max(1, cursors.size()), new Comparator<Head<T>>() {
+            public int compare(Head<T> a, Head<T> b) {
+                return comparator.compare(a.value, b.value);
+            }
+        });
+        for (Iterator<T> cursor : cursors) {
+            if (cursor.hasNext()) {
+                heads.add(new Head<>(cursor.next(), cursor));
+            }
+        }
+        while (!heads.isEmpty() && result.size() < maxCount) {
+            Head<T> head = heads.poll();
+            result.add(head.value);
+
+            if (head.rest.hasNext()) {
+                heads.add(new Head<>(head.rest.next(), head.rest));
+            }
+        }
+        return result;
+    }
+
+    private Comparable<?> convertBound(Comparable<?> bound, Class<?> keyType, Partition partition) {
+        if (bound == null || keyType.isInstance(bound)) {
+            return bound;
+        }
+        if (bound instanceof Number && Number.class.isAssignableFrom(keyType)) {
+            Number number = (Number) bound;
+
+            if (keyType == Integer.class) {
+                return number.intValue();
+            } else if (keyType == Long.class) {
+                return number.longValue();
+            } else if (keyType == Double.class) {
+                return number.doubleValue();
+            } else if (keyType == Float.class) {
+                return number.floatValue();
+            } else if (keyType == Short.class) {
+                return number.shortValue();
+            } else if (keyType == Byte.class) {
+                return number.byteValue();
+            }
+        }
+        throw new IllegalArgumentException(String.format("Bound %s of partition %s is not compatible with "
+                + "partition key of type %s", bound, partition, keyType.getName()));
+    }
+
+    private static Class<?> boxed(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        }
+        return type == int.class ? Integer.class
+                : type == long.class ? Long.class
+                : type == double.class ? Double.class
+                : type == float.class ? Float.class
+                : type == short.class ? Short.class
+                : type == byte.class ? Byte.class
+                : type == boolean.class ? Boolean.class
+                : Character.class;
+    }
+
+    private Mapper getMapper() {
+        if (! (datastore instanceof DatastoreImpl)) {
+            throw new IllegalStateException("datastore is not instance of DatastoreImpl");
+        }
+        return ((DatastoreImpl) datastore).getMapper();
+    }
+
+
+    /**
+     * A collection that holds entities with the partition key in the range
+     * from (inclusive) to (exclusive); {@code null} bound means unbounded.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Partition {
+
+        private final String collectionName;
+
+        private final Comparable<?> from;
+
+        private final Comparable<?> to;
+
+        @Override
+        public String toString() {
+            return collectionName + " [" + from + ", " + to + ")";
+        }
+    }
+
+    @AllArgsConstructor
+    private static class PartitionScheme {
+        final String partitionKey;
+        final List<Partition> partitions;
+    }
+
+    /**
+     * Cursors opened by the per-partition queries of a single find. Once
+     * closed, a cursor opened by a query that was still running is closed
+     * right away, so no cursor is leaked when the queries are cancelled.
+     */
+    private static class OpenCursors {
+
+        private final List<MorphiaIterator<?, ?>> cursors = new ArrayList<>();
+        private boolean closed = false;
+
+        synchronized void add(MorphiaIterator<?, ?> cursor) {
+            if (closed) {
+                cursor.close();
+                throw new CancellationException("Query has been cancelled");
+            }
+            cursors.add(cursor);
+        }
+
+        synchronized void closeAll() {
+            closed = true;
+            for (MorphiaIterator<?, ?> cursor : cursors) {
+                cursor.close();
+            }
+            cursors.clear();
+        }
+    }
+
+    private static class Head<T> {
+        final T value;
+        final Iterator<T> rest;
+
+        Head(T value, Iterator<T> rest) {
+            this.value = value;
+            this.rest = rest;
+        }
+    }
+
+    /**
+     * Range of the partition key restricted by the comparisons.
+     */
+    private static class KeyRange {
+
+        Object lower, upper;
+        boolean upperInclusive;
+        Collection<?> points;
+
+        void restrict(SimpleFieldCriteria criteria, String partitionKey) {
+            if (!criteria.getFieldName().equals(partitionKey)) {
+                return;
+            }
+            Object value = criteria.getValue();
+
+            switch (criteria.getOperator()) {
+                case GREATER_THAN:
+                case GREATER_THAN_OR_EQUAL:
+                    if (value instanceof Comparable && (lower == null || compare(lower, value) < 0)) {
+                        lower = value;
+                    }
+                    break;
+                case LESS_THAN:
+                case LESS_THAN_OR_EQUAL:
+                    if (value instanceof Comparable && (upper == null || compare(upper, value) > 0
+                            || (compare(upper, value) == 0 && upperInclusive))) {
+                        upper = value;
+                        upperInclusive = criteria.getOperator() == FilterOperator.LESS_THAN_OR_EQUAL;
+                    }
+                    break;
+                case EQUAL:
+                    if (value instanceof Comparable) {
+                        points = intersect(Collections.singletonList(value));
+                    }
+                    break;
+                case IN:
+                    if (value instanceof Collection) {
+                        points = intersect((Collection<?>) value);
+                    }
+                    break;
+                default:
+            }
+        }
+
+        boolean overlaps(Partition partition) {
+            Object from = partition.getFrom(), to = partition.getTo();
+
+            // values are > or >= lower, but all in the partition are < to
+            if (lower != null && to != null && compare(to, lower) <= 0) {
+                return false;
+            }
+            if (upper != null && from != null) {
+                int cmp = compare(from, upper);
+                if (cmp > 0 || (cmp == 0 && !upperInclusive)) {
+                    return false;
+                }
+            }
+            if (points != null) {
+                for (Object point : points) {
+                    if ((from == null || compare(from, point) <= 0) && (to == null || compare(to, point) > 0)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Compares the values in BSON order, so a value of other type than
+         * the partition key (e.g. a string compared with numeric bounds)
+         * doesn't fail on {@link ClassCastException}.
+         */
+        private static int compare(Object a, Object b) {
+            return OrderComparator.compareValues(a, b);
+        }
+
+        private Collection<?> intersect(Collection<?> values) {
+            if (points == null) {
+                return values;
+            }
+            List<Object> result = new ArrayList<>(values);
+            result.retainAll(points);
+            return result;
+        }
+    }
+
+    /**
+     * Compares entities by the sort keys in Morphia syntax, e.g. <tt>-date,name</tt>.
+     */
+    static class OrderComparator implements Comparator<Object> {
+
+        private final Mapper mapper;
+        private final String[] keys;
+        private final boolean[] descending;
+
+        OrderComparator(Mapper mapper, String order) {
+            this.mapper = mapper;
+            String[] parts = order.split(",");
+            this.keys = new String[parts.length];
+            this.descending = new boolean[parts.length];
+
+            for (int i = 0; i < parts.length; i++) {
+                String key = parts[i].trim();
+                descending[i] = key.startsWith("-");
+                keys[i] = descending[i] ? key.substring(1) : key;
+            }
+        }
+
+        public int compare(Object a, Object b) {
+            for (int i = 0; i < keys.length; i++) {
+                int cmp = compareValues(getValue(a, keys[i]), getValue(b, keys[i]));
+
+                if (cmp != 0) {
+                    return descending[i] ? -cmp : cmp;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Compares the values as MongoDB does, i.e. values of different
+         * types by the BSON type order. Values of the same type that are
+         * not comparable (e.g. embedded objects) are considered equal.
+         */
+        @SuppressWarnings("unchecked")
+        static int compareValues(Object a, Object b) {
+            int rankA = typeRank(a), rankB = typeRank(b);
+
+            if (rankA != rankB) {
+                return rankA < rankB ? -1 : 1;
+            }
+            if (a == null) {
+                return 0;
+            }
+            if (a instanceof Number) {
+                Number na = (Number) a, nb = (Number) b;
+                return isIntegral(na) && isIntegral(nb)
+                        ? Long.compare(na.longValue(), nb.longValue())
+                        : Double.compare(na.doubleValue(), nb.doubleValue());
+            }
+            if (a instanceof Enum || b instanceof Enum || a instanceof Character || b instanceof Character) {
+                return toStringValue(a).compareTo(toStringValue(b));
+            }
+            if (a instanceof Comparable && a.getClass() == b.getClass()) {
+                return ((Comparable) a).compareTo(b);
+            }
+            return 0;
+        }
+
+        /**
+         * Returns an order of the value's type in MongoDB's comparison order.
+         */
+        private static int typeRank(Object value) {
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return 1;
+            } else if (value instanceof CharSequence || value instanceof Character || value instanceof Enum) {
+                return 2;
+            } else if (value instanceof Collection || value.getClass().isArray() && !(value instanceof byte[])) {
+                return 4;
+            } else if (value instanceof byte[]) {
+                return 5;
+            } else if (value instanceof ObjectId) {
+                return 6;
+            } else if (value instanceof Boolean) {
+                return 7;
+            } else if (value instanceof Date) {
+                return 8;
+            } else {
+                return 3;  // embedded object
+            }
+        }
+
+        private static boolean isIntegral(Number number) {
+            return number instanceof Long || number instanceof Integer
+                    || number instanceof Short || number instanceof Byte;
+        }
+
+        private static String toStringValue(Object value) {
+            // Morphia stores enums by name
+            return value instanceof Enum ? ((Enum) value).name() : value.toString();
+        }
+
+        private Object getValue(Object entity, String path) {
+            Object value = entity;
+
+            for (String name : path.split("\\.")) {
+                if (value == null) {
+                    return null;
+                }
+                MappedClass mc = mapper.getMappedClass(value.getClass());
+                MappedField mf = mc.getMappedField(name);
+                if (mf == null) {
+                    mf = mc.getMappedFieldByJavaField(name);
+                }
+                if (mf == null) {
+                    throw new IllegalArgumentException("No such field to sort by: " + path);
+                }
+                value = mf.getFieldValue(value);
+            }
+            return value;
+        }
+    }
+}
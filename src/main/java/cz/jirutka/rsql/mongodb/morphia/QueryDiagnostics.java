@@ -0,0 +1,339 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import net.jcip.annotations.ThreadSafe;
+import org.mongodb.morphia.query.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diagnostic log of the worst queries generated from RSQL. It's fed with
+ * a sample of the final queries (see {@link #sample(String, Query)}),
+ * explains them in background and keeps the top N entries that are the
+ * slowest or the least selective (see {@link Ranking}).
+ *
+ * <p>Note that the explain runs the query, so it should be used with
+ * a small sample rate in production. When the background thread can't keep
+ * up, the sampled queries are dropped.</p>
+ */
+@ThreadSafe
+public class QueryDiagnostics {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryDiagnostics.class);
+
+    private static final int MAX_PENDING_EXPLAINS = 16;
+
+    public enum Ranking {
+
+        /** Rank by the execution time. */
+        SLOWEST,
+
+        /** Rank by the number of examined, but not returned documents. */
+        LEAST_SELECTIVE
+    }
+
+    @Getter
+    private final double sampleRate;
+
+    @Getter
+    private final int capacity;
+
+    @Getter
+    private final Ranking ranking;
+
+    private final Comparator<Entry> comparator;
+
+    // min-heap, the head is the first entry to evict
+    private final PriorityQueue<Entry> entries;
+
+    private final ExecutorService executor;
+
+
+    /**
+     * @param sampleRate The probability that a query will be sampled, in
+     *                   range from 0 to 1.
+     * @param capacity The maximal number of kept entries.
+     * @param ranking How to rank the entries.
+     */
+    public QueryDiagnostics(double sampleRate, int capacity, Ranking ranking) {
+        this(sampleRate, capacity, ranking, new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING_EXPLAINS), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "rsql-query-diagnostics");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy()));
+    }
+
+    /**
+     * @param sampleRate The probability that a query will be sampled, in
+     *                   range from 0 to 1.
+     * @param capacity The maximal number of kept entries.
+     * @param ranking How to rank the entries.
+     * @param executor The executor to explain the sampled queries on.
+     */
+    public QueryDiagnostics(double sampleRate, int capacity, Ranking ranking, ExecutorService executor) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sampleRate must be in range 0..1");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.sampleRate = sampleRate;
+        this.capacity = capacity;
+        this.ranking = ranking;
+        this.comparator = ranking == Ranking.SLOWEST ? BY_EXECUTION_TIME : BY_WASTED_DOCS;
+        this.entries = new PriorityQueue<>(capacity + 1, comparator);
+        this.executor = executor;
+    }
+
+
+    /**
+     * Decides whether the next query should be sampled.
+     */
+    public boolean shouldSample() {
+        return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * Decides whether to sample the query and if so, explains it in
+     * background and records the result. It should be called with the final
+     * query, i.e. after applying the sort order, limit etc., so the explained
+     * plan is the one that will be executed.
+     *
+     * @param rsql The RSQL the query has been created from.
+     * @param query The final query; it's copied, so it may be used further.
+     * @return Whether the query has been sampled.
+     */
+    public boolean sample(final String rsql, Query<?> query) {
+
+        if (!shouldSample()) {
+            return false;
+        }
+        final Query<?> copy = query.cloneQuery();
+
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    record(rsql, copy.getEntityClass(), copy.getQueryObject(), explain(copy).toMap());
+                } catch (RuntimeException ex) {
+                    log.warn("Failed to explain query for RSQL: {}", rsql, ex);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Explains the query using the driver's cursor, with the same
+     * projection, sort order, offset and limit as the query.
+     */
+    protected DBObject explain(Query<?> query) {
+
+        DBCursor cursor = query.getCollection().find(query.getQueryObject(), query.getFieldsObject());
+        try {
+            if (query.getSortObject() != null) {
+                cursor.sort(query.getSortObject());
+            }
+            if (query.getOffset() > 0) {
+                cursor.skip(query.getOffset());
+            }
+            if (query.getLimit() > 0) {
+                cursor.limit(query.getLimit());
+            }
+            return cursor.explain();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Stops the background explaining.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Records the query and its explain result.
+     *
+     * @param rsql The RSQL the query has been created from.
+     * @param entityClass The queried entity class.
+     * @param filter The generated filter document.
+     * @param explain The result of {@link DBCursor#explain()}.
+     */
+    public void record(String rsql, Class<?> entityClass, DBObject filter, Map<?, ?> explain) {
+
+        Entry entry = createEntry(rsql, entityClass, filter, explain);
+
+        synchronized (entries) {
+            entries.add(entry);
+            if (entries.size() > capacity) {
+                entries.poll();
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the recorded entries, the worst ones first.
+     */
+    public List<Entry> getEntries() {
+        List<Entry> result;
+        synchronized (entries) {
+            result = new ArrayList<>(entries);
+        }
+        Collections.sort(result, Collections.reverseOrder(comparator));
+
+        return result;
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+
+    /**
+     * Creates an entry from the explain result. It understands both the
+     * legacy (MongoDB 2.x) and the new (MongoDB 3.x) explain format.
+     */
+    protected Entry createEntry(String rsql, Class<?> entityClass, DBObject filter, Map<?, ?> explain) {
+
+        Map<?, ?> stats = getMap(explain, "executionStats");
+
+        if (stats != null) {
+            return new Entry(rsql, entityClass, String.valueOf(filter),
+                    findIndexName(getMap(getMap(explain, "queryPlanner"), "winningPlan")),
+                    getLong(stats, "totalDocsExamined"),
+                    getLong(stats, "nReturned"),
+                    getLong(stats, "executionTimeMillis"),
+                    new Date());
+        } else {
+            Object cursor = explain.get("cursor");
+            String indexName = cursor != null && cursor.toString().startsWith("BtreeCursor ")
+                    ? cursor.toString().substring("BtreeCursor ".length())
+                    : null;
+
+            return new Entry(rsql, entityClass, String.valueOf(filter), indexName,
+                    getLong(explain, "nscannedObjects"),
+                    getLong(explain, "n"),
+                    getLong(explain, "millis"),
+                    new Date());
+        }
+    }
+
+
+    private String findIndexName(Map<?, ?> plan) {
+        while (plan != null) {
+            if (plan.get("indexName") != null) {
+                return plan.get("indexName").toString();
+            }
+            plan = getMap(plan, "inputStage");
+        }
+        return null;
+    }
+
+    private Map<?, ?> getMap(Map<?, ?> map, String key) {
+        Object value = map != null ? map.get(key) : null;
+        return value instanceof Map ? (Map<?, ?>) value : null;
+    }
+
+    private long getLong(Map<?, ?> map, String key) {
+        Object value = map.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : -1;
+    }
+
+
+    private static final Comparator<Entry> BY_EXECUTION_TIME = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return Long.compare(a.getExecutionTimeMillis(), b.getExecutionTimeMillis());
+        }
+    };
+
+    private static final Comparator<Entry> BY_WASTED_DOCS = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return Long.compare(a.getDocsExamined() - a.getDocsReturned(), b.getDocsExamined() - b.getDocsReturned());
+        }
+    };
+
+
+    @Getter
+    @AllArgsConstructor
+    public static class Entry {
+
+        private final String rsql;
+
+        private final Class<?> entityClass;
+
+        /** The filter document serialized as JSON. */
+        private final String filter;
+
+        /** Name of the used index, or {@code null} if none. */
+        private final String indexName;
+
+        private final long docsExamined;
+
+        private final long docsReturned;
+
+        private final long executionTimeMillis;
+
+        private final Date recordedAt;
+
+
+        /**
+         * Ratio of the returned to examined documents, 1 is the best.
+         */
+        public double getSelectivity() {
+            return docsExamined > 0 ? (double) docsReturned / docsExamined : 1.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s [%s] %s: index=%s, examined=%d, returned=%d, time=%dms",
+                    entityClass.getSimpleName(), rsql, filter, indexName, docsExamined, docsReturned,
+                    executionTimeMillis);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import com.mongodb.DBObject;
+import cz.jirutka.rsql.mongodb.morphia.internal.BoundedCache;
+import cz.jirutka.rsql.mongodb.morphia.internal.ReferenceCriteria;
+import lombok.Getter;
+import net.jcip.annotations.ThreadSafe;
+import org.mongodb.morphia.AbstractEntityInterceptor;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.DatastoreImpl;
+import org.mongodb.morphia.mapping.Mapper;
+import org.mongodb.morphia.query.Criteria;
+import org.mongodb.morphia.query.Query;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of query results keyed by the entity class and the
+ * {@linkplain CanonicalFilterEmitter canonical form} of the compiled filter,
+ * so equivalent filters with reordered operands share the same entry.
+ *
+ * <p>All entries of an entity class (and its superclasses) are invalidated
+ * when an entity of that class is saved through the datastore, and so are
+ * the entries with a filter that goes through a reference to that class.
+ * Updates and deletes by query don't go through Morphia's interceptors,
+ * neither do writes from other processes; feed these into
+ * {@link #invalidate(Class)}, e.g. from a change stream or an oplog tailer.
+ * When the {@link MorphiaRSQLImpl}'s referenced ids finder is
+ * a {@link DefaultReferencedIdsFinder}, its cache is cleared on
+ * invalidation as well.</p>
+ *
+ * <p>The cached lists are unmodifiable and the entities in them are shared
+ * among the callers, so they must not be modified.</p>
+ *
+ * <p>Call {@link #close()} when the cache is not used anymore, so it's not
+ * notified about the saved entities.</p>
+ */
+@ThreadSafe
+public class QueryResultCache {
+
+    public static final int DEFAULT_MAX_SIZE = 256;
+    public static final long DEFAULT_TTL = 60 * 1000;
+
+    // one interceptor per mapper, shared by all the caches of its datastore
+    private static final Map<Mapper, InvalidatingInterceptor> INTERCEPTORS = new WeakHashMap<>();
+
+    private final Datastore datastore;
+
+    private final MorphiaRSQL morphiaRSQL;
+
+    @Getter
+    private final int maxSize;
+
+    @Getter
+    private final long ttlMillis;
+
+    private final FilterEmitter<String> keyEmitter = new CanonicalFilterEmitter();
+
+    private final ConcurrentMap<Class<?>, EntityCache> caches = new ConcurrentHashMap<>();
+
+    // incremented on every invalidation
+    private final AtomicLong generation = new AtomicLong();
+
+
+    public QueryResultCache(Datastore datastore, MorphiaRSQL morphiaRSQL) {
+        this(datastore, morphiaRSQL, DEFAULT_MAX_SIZE, DEFAULT_TTL);
+    }
+
+    /**
+     * @param datastore The datastore to run the queries on; when it's an
+     *                  instance of {@link DatastoreImpl}, the cache is
+     *                  invalidated on save, until it's {@linkplain #close() closed}.
+     * @param morphiaRSQL The RSQL compiler.
+     * @param maxSize The maximal number of cached results per entity class.
+     * @param ttlMillis Time-to-live of the cached results in milliseconds,
+     *                  or zero if they should not expire.
+     */
+    public QueryResultCache(Datastore datastore, MorphiaRSQL morphiaRSQL, int maxSize, long ttlMillis) {
+        this.datastore = datastore;
+        this.morphiaRSQL = morphiaRSQL;
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+
+        if (datastore instanceof DatastoreImpl) {
+            getInterceptor(((DatastoreImpl) datastore).getMapper()).caches.add(this);
+        }
+    }
+
+
+    /**
+     * Returns entities matching the RSQL filter, from the cache if present.
+     *
+     * @see MorphiaRSQL#createQuery(String, Class)
+     */
+    public <T> List<T> find(String rsql, Class<T> entityClass) {
+        return find(rsql, entityClass, null, 0);
+    }
+
+    /**
+     * Returns entities matching the RSQL filter, from the cache if present.
+     *
+     * @param rsql The RSQL filter.
+     * @param entityClass The entity class to query.
+     * @param order The sort order in Morphia syntax (see {@link Query#order(String)}),
+     *              or {@code null}.
+     * @param limit The maximal number of results, or zero for no limit.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> find(String rsql, Class<T> entityClass, String order, int limit) {
+
+        // taken before compiling, because the referenced ids are looked up while compiling
+        long generationBefore = generation.get();
+
+        Criteria criteria = morphiaRSQL.createCriteria(rsql, entityClass);
+        String key = keyEmitter.emit(criteria) + '|' + order + '|' + limit;
+
+        EntityCache cache = getEntityCache(entityClass);
+        List<T> result = (List<T>) cache.results.get(key);
+
+        if (result == null) {
+            Query<T> query = datastore.createQuery(entityClass);
+            query.and(criteria);
+            if (order != null) {
+                query.order(order);
+            }
+            if (limit > 0) {
+                query.limit(limit);
+            }
+            result = Collections.unmodifiableList(query.asList());
+
+            // don't cache a result that could be invalidated while compiling or running the query
+            synchronized (cache) {
+                if (generation.get() == generationBefore) {
+                    cache.referencedClasses.addAll(ReferenceCriteria.collectReferencedClasses(criteria));
+                    cache.results.put(key, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Invalidates all cached results of the given entity class and of its
+     * superclasses, and the results of the filters that go through
+     * a reference to any of these classes.
+     */
+    public void invalidate(Class<?> entityClass) {
+
+        generation.incrementAndGet();
+
+        for (Map.Entry<Class<?>, EntityCache> entry : caches.entrySet()) {
+            EntityCache cache = entry.getValue();
+
+            synchronized (cache) {
+                if (entry.getKey().isAssignableFrom(entityClass) || cache.dependsOn(entityClass)) {
+                    cache.clear();
+                }
+            }
+        }
+        clearReferencedIds();
+    }
+
+    public void invalidateAll() {
+
+        generation.incrementAndGet();
+
+        for (EntityCache cache : caches.values()) {
+            synchronized (cache) {
+                cache.clear();
+            }
+        }
+        clearReferencedIds();
+    }
+
+    /**
+     * Stops the invalidation of this cache on save and clears it.
+     */
+    public void close() {
+
+        if (datastore instanceof DatastoreImpl) {
+            Mapper mapper = ((DatastoreImpl) datastore).getMapper();
+
+            synchronized (INTERCEPTORS) {
+                InvalidatingInterceptor interceptor = INTERCEPTORS.get(mapper);
+                if (interceptor != null) {
+                    interceptor.caches.remove(this);
+                }
+            }
+        }
+        invalidateAll();
+    }
+
+
+    private EntityCache getEntityCache(Class<?> entityClass) {
+        EntityCache cache = caches.get(entityClass);
+
+        if (cache == null) {
+            cache = new EntityCache(maxSize, ttlMillis);
+            EntityCache existing = caches.putIfAbsent(entityClass, cache);
+            cache = existing != null ? existing : cache;
+        }
+        return cache;
+    }
+
+    private void clearReferencedIds() {
+
+        if (morphiaRSQL instanceof MorphiaRSQLImpl) {
+            ReferencedIdsFinder finder = ((MorphiaRSQLImpl) morphiaRSQL).getReferencedIdsFinder();
+
+            if (finder instanceof DefaultReferencedIdsFinder) {
+                ((DefaultReferencedIdsFinder) finder).clearCache();
+            }
+        }
+    }
+
+    private static InvalidatingInterceptor getInterceptor(Mapper mapper) {
+        synchronized (INTERCEPTORS) {
+            InvalidatingInterceptor interceptor = INTERCEPTORS.get(mapper);
+
+            if (interceptor == null) {
+                interceptor = new InvalidatingInterceptor();
+                mapper.addInterceptor(interceptor);
+                INTERCEPTORS.put(mapper, interceptor);
+            }
+            return interceptor;
+        }
+    }
+
+
+    private static class EntityCache {
+
+        final BoundedCache<String, List<?>> results;
+
+        // classes of the referenced entities the cached results depend on, guarded by this
+        final Set<Class<?>> referencedClasses = new HashSet<>();
+
+        EntityCache(int maxSize, long ttlMillis) {
+            this.results = new BoundedCache<>(maxSize, ttlMillis);
+        }
+
+        boolean dependsOn(Class<?> entityClass) {
+            for (Class<?> referencedClass : referencedClasses) {
+                if (referencedClass.isAssignableFrom(entityClass)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void clear() {
+            results.clear();
+            referencedClasses.clear();
+        }
+    }
+
+    private static class InvalidatingInterceptor extends AbstractEntityInterceptor {
+
+        final Set<QueryResultCache> caches = new CopyOnWriteArraySet<>();
+
+        @Override
+        public void postPersist(Object entity, DBObject dbObj, Mapper mapper) {
+            for (QueryResultCache cache : caches) {
+                cache.invalidate(entity.getClass());
+            }
+        }
+    }
+}
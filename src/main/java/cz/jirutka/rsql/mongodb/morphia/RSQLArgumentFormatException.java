@@ -33,13 +33,23 @@ public class RSQLArgumentFormatException extends RSQLException {
 
 
     public RSQLArgumentFormatException(String value, Class<?> targetType, Throwable cause) {
-        super(String.format("Cannot convert value '%s' to: %s", value, targetType.getName()), cause);
+        super(cause, "Cannot convert value '%s' to: %s", value, targetType.getName());
         this.value = value;
         this.targetType = targetType;
     }
 
     public RSQLArgumentFormatException(String value, Class<?> targetType) {
-        super(String.format("Cannot convert value '%s' to: %s", value, targetType.getName()));
+        super(null, "Cannot convert value '%s' to: %s", value, targetType.getName());
+        this.value = value;
+        this.targetType = targetType;
+    }
+
+    /**
+     * Creates an exception for a value that has been converted, but is not
+     * valid for the target, e.g. a coordinate out of range.
+     */
+    public RSQLArgumentFormatException(String value, Class<?> targetType, String messageFormat, Object... args) {
+        super(null, messageFormat, args);
         this.value = value;
         this.targetType = targetType;
     }
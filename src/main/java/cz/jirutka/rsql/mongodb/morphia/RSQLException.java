@@ -23,17 +23,128 @@
  */
 package cz.jirutka.rsql.mongodb.morphia;
 
+/**
+ * Base exception of this library.
+ *
+ * <p>Invalid filters are usually caused by clients, so these exceptions may
+ * be thrown very often. To make them cheaper, the stack trace can be disabled
+ * for a {@link MorphiaRSQLImpl} instance using its
+ * {@link MorphiaRSQLImpl#setStackTraceEnabled(boolean) stackTraceEnabled}
+ * property and the messages of the subclasses are formatted lazily, i.e.
+ * only when requested.</p>
+ */
 public class RSQLException extends RuntimeException {
 
+    // setting of the MorphiaRSQLImpl call in progress on the current thread, null if none
+    private static final ThreadLocal<Boolean> STACK_TRACE_ENABLED = new ThreadLocal<>();
+
+    private final String messageFormat;
+    private final Object[] messageArgs;
+
+    private String selector;
+
+
     public RSQLException(String message) {
         super(message);
+        this.messageFormat = null;
+        this.messageArgs = null;
     }
 
     public RSQLException(String message, Throwable cause) {
         super(message, cause);
+        this.messageFormat = null;
+        this.messageArgs = null;
     }
 
     public RSQLException(Throwable cause) {
         super(cause);
+        this.messageFormat = null;
+        this.messageArgs = null;
+    }
+
+    /**
+     * Creates an exception with a message that will be formatted using
+     * {@link String#format(String, Object...)} when requested.
+     */
+    protected RSQLException(Throwable cause, String messageFormat, Object... messageArgs) {
+        super(null, cause);
+        this.messageFormat = messageFormat;
+        this.messageArgs = messageArgs;
+    }
+
+
+    /**
+     * Whether the stack trace is filled in when an {@code RSQLException} is
+     * created on the current thread. It's {@code true}, unless called within
+     * a {@link MorphiaRSQLImpl} call with stack traces disabled. Converters
+     * and other components may use it to avoid creating expensive causes.
+     */
+    public static boolean isStackTraceEnabled() {
+        Boolean enabled = STACK_TRACE_ENABLED.get();
+        return enabled == null || enabled;
+    }
+
+    /**
+     * Sets whether to fill in the stack trace of the exceptions created on
+     * the current thread.
+     *
+     * @param enabled The setting, or {@code null} to reset it.
+     * @return The previous setting, to be restored when the call is done.
+     */
+    static Boolean setStackTraceEnabled(Boolean enabled) {
+        Boolean previous = STACK_TRACE_ENABLED.get();
+
+        if (enabled != null) {
+            STACK_TRACE_ENABLED.set(enabled);
+        } else {
+            STACK_TRACE_ENABLED.remove();
+        }
+        return previous;
+    }
+
+
+    @Override
+    public String getMessage() {
+        return messageFormat != null
+                ? String.format(messageFormat, messageArgs)
+                : super.getMessage();
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return isStackTraceEnabled() ? super.fillInStackTrace() : this;
+    }
+
+    /**
+     * Returns the selector of the comparison that caused this exception,
+     * or {@code null} if unknown.
+     */
+    public String getSelector() {
+        return selector;
+    }
+
+    /**
+     * Sets the selector, unless it's already set.
+     *
+     * @return this exception.
+     */
+    public RSQLException withSelector(String selector) {
+        if (this.selector == null) {
+            this.selector = selector;
+        }
+        return this;
+    }
+
+    /**
+     * Prepends the prefix to the selector, if it's set. This is used when
+     * the comparison has been evaluated relative to a referenced entity.
+     *
+     * @return this exception.
+     */
+    public RSQLException withSelectorPrefix(String prefix) {
+        if (this.selector != null) {
+            this.selector = prefix + this.selector;
+        }
+        return this;
     }
 }
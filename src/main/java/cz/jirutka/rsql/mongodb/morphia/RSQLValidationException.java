@@ -32,4 +32,15 @@ public class RSQLValidationException extends RSQLException {
     public RSQLValidationException(String message) {
         super(message);
     }
+
+    /**
+     * @param selector The selector of the invalid comparison.
+     * @param cause The cause, or {@code null}.
+     * @param messageFormat The message format, it will be formatted lazily.
+     * @param messageArgs The message format arguments.
+     */
+    public RSQLValidationException(String selector, Throwable cause, String messageFormat, Object... messageArgs) {
+        super(cause, messageFormat, messageArgs);
+        withSelector(selector);
+    }
 }
@@ -0,0 +1,47 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import org.mongodb.morphia.query.Criteria;
+
+import java.util.Collection;
+
+/**
+ * Finds ids of entities matching the given criteria. It's used to evaluate
+ * comparisons on fields of {@linkplain org.mongodb.morphia.annotations.Reference
+ * referenced} entities, e.g. <tt>owner.country==CZ</tt>.
+ */
+public interface ReferencedIdsFinder {
+
+    /**
+     * Finds ids of entities that matches the criteria.
+     *
+     * @param entityClass A class of the referenced entity.
+     * @param criteria The criteria created for the referenced entity.
+     * @return A collection of ids (mongo-compatible objects).
+     *
+     * @throws RSQLValidationException if too many entities matches the criteria.
+     */
+    Collection<?> findIds(Class<?> entityClass, Criteria criteria);
+}
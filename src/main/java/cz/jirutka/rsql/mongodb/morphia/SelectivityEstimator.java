@@ -0,0 +1,618 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DBRefBase;
+import com.mongodb.MongoException;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import net.jcip.annotations.ThreadSafe;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.query.Criteria;
+import org.mongodb.morphia.query.CriteriaJoin;
+import org.mongodb.morphia.query.FilterOperator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the number of documents matching a compiled filter, without
+ * querying the database. The estimate is based on the number of documents
+ * in the collection and on a sample of documents, both loaded and refreshed
+ * in the background.
+ *
+ * <p>Selectivity of each comparison is estimated from the sampled values
+ * of the field (frequency of the value for equality, share of the documents
+ * with a smaller or greater value for ranges; the minimal, resp. maximal
+ * value of an array). Selectivities of AND children are
+ * multiplied and of OR children combined as {@code 1 - Π(1 - s)}, i.e.
+ * the comparisons are assumed to be independent. Comparisons on referenced
+ * entities are estimated from the sampled ids of the references, and
+ * <tt>$elemMatch</tt> as AND of its comparisons on the fields of the list
+ * elements (i.e. it's assumed that they match the same element). Comparisons
+ * that can't be estimated from the sample (e.g. geospatial, or a range on
+ * a field without any value of the same type in the sample) get a fixed
+ * selectivity of {@value #UNKNOWN_SELECTIVITY}.</p>
+ *
+ * <p>The statistics of all fields found in the sample are computed in the
+ * background along with loading the sample, so the estimate itself is
+ * cheap.</p>
+ *
+ * <p>The sample is selected randomly using the {@code $sample} aggregation
+ * stage (MongoDB 3.2+); on older servers, all the documents are read and
+ * sampled in the background.</p>
+ *
+ * <p>When the statistics for the entity class are not loaded yet, the
+ * estimate is {@linkplain Estimate#isAvailable() not available} and the
+ * loading is scheduled.</p>
+ */
+@ThreadSafe
+public class SelectivityEstimator {
+
+    private static final Logger log = LoggerFactory.getLogger(SelectivityEstimator.class);
+
+    public static final double UNKNOWN_SELECTIVITY = 0.1;
+
+    public static final int DEFAULT_SAMPLE_SIZE = 1000;
+    public static final long DEFAULT_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+    private final Datastore datastore;
+
+    @Getter
+    private final int sampleSize;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ConcurrentMap<Class<?>, CollectionStats> stats = new ConcurrentHashMap<>();
+
+    private final Set<Class<?>> scheduled = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+
+    private final long refreshIntervalMillis;
+
+
+    public SelectivityEstimator(Datastore datastore) {
+        this(datastore, DEFAULT_SAMPLE_SIZE, DEFAULT_REFRESH_INTERVAL);
+    }
+
+    /**
+     * @param datastore The datastore to load the statistics from.
+     * @param sampleSize The number of sampled documents per collection.
+     * @param refreshIntervalMillis How often to reload the statistics.
+     */
+    public SelectivityEstimator(Datastore datastore, int sampleSize, long refreshIntervalMillis) {
+        this.datastore = datastore;
+        this.sampleSize = sampleSize;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "rsql-selectivity-estimator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    /**
+     * Estimates selectivity and number of documents matching the filter.
+     *
+     * @param entityClass The queried entity class.
+     * @param compiled The compiled filter, see {@link MorphiaRSQL#createCriteria(String, Class)}.
+     * @return The estimate; if the statistics are not loaded yet, then
+     *         it's not {@linkplain Estimate#isAvailable() available}.
+     */
+    public Estimate estimate(Class<?> entityClass, Criteria compiled) {
+
+        CollectionStats collStats = stats.get(entityClass);
+
+        if (collStats == null) {
+            scheduleRefresh(entityClass);
+            return new Estimate(false, 1.0, -1);
+        }
+        double selectivity = new SelectivityEmitter(collStats).emit(compiled);
+
+        return new Estimate(true, selectivity, Math.round(selectivity * collStats.count));
+    }
+
+    /**
+     * Loads the statistics for the entity class synchronously.
+     */
+    public void refresh(Class<?> entityClass) {
+
+        DBCollection collection = datastore.getCollection(entityClass);
+        long count = collection.getCount();
+
+        stats.put(entityClass, CollectionStats.of(count, loadSample(collection, count)));
+        log.debug("Loaded statistics for {}: {} documents", entityClass.getSimpleName(), count);
+    }
+
+    /**
+     * Stops the background refreshing.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+
+    protected List<DBObject> loadSample(DBCollection collection, long count) {
+
+        if (count > sampleSize) {
+            try {
+                DBObject sample = new BasicDBObject("$sample", new BasicDBObject("size", sampleSize));
+                List<DBObject> result = new ArrayList<>(sampleSize);
+
+                for (DBObject obj : collection.aggregate(sample).results()) {
+                    result.add(obj);
+                }
+                return result;
+
+            } catch (MongoException ex) {
+                log.debug("$sample is not supported, falling back to reservoir sampling of {} documents", sampleSize);
+                return reservoirSample(collection);
+            }
+        }
+        return collection.find().limit(sampleSize).toArray();
+    }
+
+    /**
+     * Samples the documents uniformly in a single pass over the whole
+     * collection. It's run in the background only, but it's still costly.
+     */
+    private List<DBObject> reservoirSample(DBCollection collection) {
+
+        List<DBObject> result = new ArrayList<>(sampleSize);
+        Random random = new Random();
+        DBCursor cursor = collection.find();
+        try {
+            for (int seen = 0; cursor.hasNext(); seen++) {
+                DBObject obj = cursor.next();
+
+                if (seen < sampleSize) {
+                    result.add(obj);
+                } else {
+                    int idx = random.nextInt(seen + 1);
+                    if (idx < sampleSize) {
+                        result.set(idx, obj);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    private void scheduleRefresh(final Class<?> entityClass) {
+
+        if (scheduled.add(entityClass)) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        refresh(entityClass);
+                    } catch (RuntimeException ex) {
+                        log.warn("Failed to load statistics for {}", entityClass, ex);
+                    }
+                }
+            }, 0, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    @Getter
+    @AllArgsConstructor
+    public static class Estimate {
+
+        /** Whether the statistics for the estimate were available. */
+        private final boolean available;
+
+        /** Estimated ratio of the matching documents, from 0 to 1. */
+        private final double selectivity;
+
+        /** Estimated number of the matching documents, or -1 if not available. */
+        private final long count;
+    }
+
+
+    /**
+     * Immutable statistics of a collection and of all fields in its sample.
+     */
+    static class CollectionStats {
+
+        final long count;
+        final Map<String, FieldStats> fields;
+        final FieldStats missingField;
+
+        private CollectionStats(long count, Map<String, FieldStats> fields, FieldStats missingField) {
+            this.count = count;
+            this.fields = fields;
+            this.missingField = missingField;
+        }
+
+        /**
+         * Computes statistics of all the fields found in the sample.
+         */
+        static CollectionStats of(long count, List<DBObject> sample) {
+
+            Set<String> paths = new HashSet<>();
+            for (DBObject doc : sample) {
+                collectPaths(doc, null, paths);
+            }
+            Map<String, FieldStats> fields = new HashMap<>(paths.size() * 2);
+            for (String path : paths) {
+                fields.put(path, new FieldStats(sample, path));
+            }
+            return new CollectionStats(count, fields, new FieldStats(sample.size()));
+        }
+
+        /**
+         * Returns statistics of the field; a field that is not in the sample
+         * gets statistics without any values.
+         */
+        FieldStats getFieldStats(String fieldPath) {
+            FieldStats fieldStats = fields.get(fieldPath);
+
+            return fieldStats != null ? fieldStats : missingField;
+        }
+
+        /**
+         * Collects dotted paths of the leaf values in the document, through
+         * arrays and references (as <tt>$id</tt>).
+         */
+        private static void collectPaths(Object obj, String prefix, Set<String> result) {
+            if (obj instanceof List) {
+                for (Object item : (List<?>) obj) {
+                    collectPaths(item, prefix, result);
+                }
+            } else if (obj instanceof DBObject) {
+                DBObject doc = (DBObject) obj;
+                for (String key : doc.keySet()) {
+                    collectPaths(doc.get(key), prefix == null ? key : prefix + '.' + key, result);
+                }
+            } else if (obj instanceof DBRefBase) {
+                result.add(prefix + ".$id");
+
+            } else if (prefix != null) {
+                result.add(prefix);
+            }
+        }
+    }
+
+    /**
+     * Frequencies and sorted values of a field in the sample.
+     */
+    static class FieldStats {
+
+        final int sampleSize;
+
+        // key is a normalized value, value is a number of documents that contain it
+        final Map<Object, Integer> frequencies = new HashMap<>();
+
+        // sorted minimal/maximal normalized value of each document, by type of the values; a document
+        // with an array matches "less than" if its minimal value does, "greater than" if its maximal does
+        final Map<Class<?>, List<Comparable>> sortedMinValues = new HashMap<>();
+        final Map<Class<?>, List<Comparable>> sortedMaxValues = new HashMap<>();
+
+        /**
+         * Creates statistics of a field that is not in any of the sampled
+         * documents.
+         */
+        FieldStats(int sampleSize) {
+            this.sampleSize = sampleSize;
+        }
+
+        @SuppressWarnings("unchecked")
+        FieldStats(List<DBObject> sample, String fieldPath) {
+            this.sampleSize = sample.size();
+
+            String[] path = fieldPath.split("\\.");
+            List<Object> values = new ArrayList<>();
+            Map<Class<?>, Comparable> mins = new HashMap<>(), maxs = new HashMap<>();
+
+            for (DBObject doc : sample) {
+                values.clear();
+                mins.clear();
+                maxs.clear();
+                collectValues(doc, path, 0, values);
+
+                for (Object value : new HashSet<>(values)) {
+                    Integer freq = frequencies.get(value);
+                    frequencies.put(value, freq == null ? 1 : freq + 1);
+
+                    if (value instanceof Comparable) {
+                        Comparable min = mins.get(value.getClass()), max = maxs.get(value.getClass());
+
+                        if (min == null || min.compareTo(value) > 0) {
+                            mins.put(value.getClass(), (Comparable) value);
+                        }
+                        if (max == null || max.compareTo(value) < 0) {
+                            maxs.put(value.getClass(), (Comparable) value);
+                        }
+                    }
+                }
+                for (Map.Entry<Class<?>, Comparable> entry : mins.entrySet()) {
+                    getList(sortedMinValues, entry.getKey()).add(entry.getValue());
+                }
+                for (Map.Entry<Class<?>, Comparable> entry : maxs.entrySet()) {
+                    getList(sortedMaxValues, entry.getKey()).add(entry.getValue());
+                }
+            }
+            for (List<Comparable> list : sortedMinValues.values()) {
+                Collections.sort(list);
+            }
+            for (List<Comparable> list : sortedMaxValues.values()) {
+                Collections.sort(list);
+            }
+        }
+
+        /**
+         * Returns a ratio of the sampled documents that contain the value.
+         */
+        double equal(Object value) {
+            if (sampleSize == 0) {
+                return UNKNOWN_SELECTIVITY;
+            }
+            Integer freq = frequencies.get(normalize(value));
+
+            // not in the sample, so it's probably rarer than one sampled document
+            return freq != null ? (double) freq / sampleSize : 0.5 / sampleSize;
+        }
+
+        /**
+         * Returns a ratio of the sampled documents with a value lower (or
+         * equal) than the given value, or {@link #UNKNOWN_SELECTIVITY} if the
+         * sample doesn't contain any value of the same type.
+         */
+        double lessThan(Object value, boolean inclusive) {
+            value = normalize(value);
+            List<Comparable> sorted = getSorted(sortedMinValues, value);
+
+            if (sorted == null) {
+                return UNKNOWN_SELECTIVITY;
+            }
+            int lower = inclusive ? upperBound(sorted, value) : lowerBound(sorted, value);
+
+            return (double) lower / sampleSize;
+        }
+
+        /**
+         * Returns a ratio of the sampled documents with a value greater (or
+         * equal) than the given value, or {@link #UNKNOWN_SELECTIVITY} if the
+         * sample doesn't contain any value of the same type.
+         */
+        double greaterThan(Object value, boolean inclusive) {
+            value = normalize(value);
+            List<Comparable> sorted = getSorted(sortedMaxValues, value);
+
+            if (sorted == null) {
+                return UNKNOWN_SELECTIVITY;
+            }
+            int upper = sorted.size() - (inclusive ? lowerBound(sorted, value) : upperBound(sorted, value));
+
+            return (double) upper / sampleSize;
+        }
+
+        private List<Comparable> getSorted(Map<Class<?>, List<Comparable>> sortedValues, Object value) {
+            return sampleSize > 0 && value instanceof Comparable ? sortedValues.get(value.getClass()) : null;
+        }
+
+        private static List<Comparable> getList(Map<Class<?>, List<Comparable>> map, Class<?> type) {
+            List<Comparable> list = map.get(type);
+
+            if (list == null) {
+                list = new ArrayList<>();
+                map.put(type, list);
+            }
+            return list;
+        }
+
+        /**
+         * Returns index of the first element that is not lower than the value.
+         */
+        @SuppressWarnings("unchecked")
+        private static int lowerBound(List<Comparable> sorted, Object value) {
+            int low = 0, high = sorted.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sorted.get(mid).compareTo(value) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Returns index of the first element that is greater than the value.
+         */
+        @SuppressWarnings("unchecked")
+        private static int upperBound(List<Comparable> sorted, Object value) {
+            int low = 0, high = sorted.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sorted.get(mid).compareTo(value) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private static void collectValues(Object obj, String[] path, int depth, List<Object> result) {
+            if (obj instanceof List) {
+                for (Object item : (List<?>) obj) {
+                    collectValues(item, path, depth, result);
+                }
+            } else if (depth == path.length) {
+                result.add(normalize(obj));
+
+            } else if (obj instanceof DBObject) {
+                collectValues(((DBObject) obj).get(path[depth]), path, depth + 1, result);
+
+            } else if (obj instanceof DBRefBase && "$id".equals(path[depth])) {
+                collectValues(((DBRefBase) obj).getId(), path, depth + 1, result);
+            }
+        }
+
+        static Object normalize(Object value) {
+            return value instanceof Number ? (Object) ((Number) value).doubleValue() : value;
+        }
+    }
+
+    /**
+     * Computes selectivity of the compiled filter.
+     */
+    private static class SelectivityEmitter extends AbstractFilterEmitter<Double> {
+
+        private final CollectionStats collStats;
+
+        SelectivityEmitter(CollectionStats collStats) {
+            this.collStats = collStats;
+        }
+
+        protected Double emitField(String fieldPath, FilterOperator operator, Object value) {
+            FieldStats field = collStats.getFieldStats(fieldPath);
+
+            switch (operator) {
+                case EQUAL:
+                    return field.equal(value);
+                case NOT_EQUAL:
+                    return 1.0 - field.equal(value);
+                case IN:
+                    return Math.min(1.0, sumEqual(field, value));
+                case NOT_IN:
+                    return Math.max(0.0, 1.0 - sumEqual(field, value));
+                case ALL:
+                    return productEqual(field, value);
+                case LESS_THAN:
+                    return field.lessThan(value, false);
+                case LESS_THAN_OR_EQUAL:
+                    return field.lessThan(value, true);
+                case GREATER_THAN:
+                    return field.greaterThan(value, false);
+                case GREATER_THAN_OR_EQUAL:
+                    return field.greaterThan(value, true);
+                case ELEMENT_MATCH:
+                    return value instanceof Map ? elemMatch(fieldPath, (Map<?, ?>) value) : UNKNOWN_SELECTIVITY;
+                default:
+                    return UNKNOWN_SELECTIVITY;
+            }
+        }
+
+        /**
+         * Estimates <tt>$elemMatch</tt> as AND of the comparisons on the
+         * fields of the list elements.
+         */
+        private double elemMatch(String listPath, Map<?, ?> query) {
+            double result = 1.0;
+
+            for (Map.Entry<?, ?> entry : query.entrySet()) {
+                String fieldPath = listPath + '.' + entry.getKey();
+
+                if (isOperators(entry.getValue())) {
+                    for (Map.Entry<?, ?> op : ((Map<?, ?>) entry.getValue()).entrySet()) {
+                        FilterOperator operator = FilterOperator.fromString(op.getKey().toString());
+                        result *= operator != null
+                                ? emitField(fieldPath, operator, op.getValue())
+                                : UNKNOWN_SELECTIVITY;
+                    }
+                } else {
+                    result *= emitField(fieldPath, FilterOperator.EQUAL, entry.getValue());
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Whether the value is a map of operators, e.g. <tt>{$gt: 1}</tt>.
+         */
+        private boolean isOperators(Object value) {
+            if (!(value instanceof Map) || ((Map<?, ?>) value).isEmpty()) {
+                return false;
+            }
+            for (Object key : ((Map<?, ?>) value).keySet()) {
+                if (!key.toString().startsWith("$")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        protected Double emitJunction(CriteriaJoin join, List<Double> children) {
+            double result = 1.0;
+
+            if (join == CriteriaJoin.AND) {
+                for (double s : children) {
+                    result *= s;
+                }
+                return result;
+            } else {
+                for (double s : children) {
+                    result *= 1.0 - s;
+                }
+                return 1.0 - result;
+            }
+        }
+
+        private double sumEqual(FieldStats field, Object values) {
+            double sum = 0;
+            for (Object value : asCollection(values)) {
+                sum += field.equal(value);
+            }
+            return sum;
+        }
+
+        private double productEqual(FieldStats field, Object values) {
+            double product = 1.0;
+            for (Object value : asCollection(values)) {
+                product *= field.equal(value);
+            }
+            return product;
+        }
+
+        private Collection<?> asCollection(Object value) {
+            return value instanceof Collection ? (Collection<?>) value : Collections.singletonList(value);
+        }
+    }
+}
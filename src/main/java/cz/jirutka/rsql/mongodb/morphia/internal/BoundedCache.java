@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia.internal;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A simple synchronized LRU cache with a maximal size and an optional
+ * time-to-live of the entries.
+ *
+ * @param <K> Type of the keys.
+ * @param <V> Type of the values.
+ */
+@ThreadSafe
+public class BoundedCache<K, V> {
+
+    private final long ttlMillis;
+
+    private final Map<K, Entry<V>> map;
+
+
+    /**
+     * @param maxSize The maximal number of entries; when exceeded, the least
+     *                recently used entry is evicted.
+     * @param ttlMillis Time-to-live of the entries in milliseconds, or zero
+     *                  if the entries should not expire.
+     */
+    public BoundedCache(final int maxSize, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+
+    /**
+     * Returns the cached value, or {@code null} if there's no such entry or
+     * it has been expired.
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = map.get(key);
+
+        if (entry == null) {
+            return null;
+        }
+        if (ttlMillis > 0 && System.currentTimeMillis() > entry.expiresAt) {
+            map.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+        map.put(key, new Entry<>(value, expiresAt));
+    }
+
+    public synchronized V remove(K key) {
+        Entry<V> entry = map.remove(key);
+        return entry != null ? entry.value : null;
+    }
+
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+
+    private static class Entry<V> {
+
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
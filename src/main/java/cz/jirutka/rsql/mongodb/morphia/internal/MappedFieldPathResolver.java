@@ -23,12 +23,20 @@
  */
 package cz.jirutka.rsql.mongodb.morphia.internal;
 
+import cz.jirutka.rsql.mongodb.morphia.RSQLException;
 import cz.jirutka.rsql.mongodb.morphia.RSQLValidationException;
+import org.mongodb.morphia.annotations.Embedded;
+import org.mongodb.morphia.annotations.Entity;
 import org.mongodb.morphia.annotations.Reference;
+import org.mongodb.morphia.mapping.MappedClass;
 import org.mongodb.morphia.mapping.MappedField;
 import org.mongodb.morphia.mapping.Mapper;
 import org.mongodb.morphia.query.ValidationException;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class MappedFieldPathResolver {
 
     private final Mapper mapper;
@@ -58,6 +66,10 @@ public class MappedFieldPathResolver {
      */
     public MappedFieldPath resolveFieldPath(String fieldPath, Class<?> entityClass) throws RSQLValidationException {
 
+        // reject a path with an unknown field without Mapper.validate(), it'd create and throw an exception
+        if (isUnmapped(fieldPath, entityClass)) {
+            throw new RSQLValidationException(fieldPath, null, "Could not find matching field for path: %s", fieldPath);
+        }
         // this will be modified by Mapper.validate()
         StringBuilder mutablePath = new StringBuilder(fieldPath);
 
@@ -74,8 +86,124 @@ public class MappedFieldPathResolver {
             return new MappedFieldPath(mutablePath.toString(), mf, type);
 
         } catch (ValidationException ex) {
-            throw new RSQLValidationException("Could not find matching field for path: " + fieldPath, ex);
+            Throwable cause = RSQLException.isStackTraceEnabled() ? ex : null;
+            throw new RSQLValidationException(fieldPath, cause, "Could not find matching field for path: %s", fieldPath);
+        }
+    }
+
+    /**
+     * Resolves a path of the field to be included in a projection. Unlike
+     * {@link #resolveFieldPath(String, Class)}, a path of a reference field
+     * is resolved to the reference itself, not to its {@code $id}.
+     *
+     * @param fieldPath The field name or a path of the field inside
+     *        a subdocument(s) (using dot notation).
+     * @param entityClass A class of the {@link org.mongodb.morphia.annotations.Entity Entity}
+     *        that hold the field.
+     *
+     * @return The resolved path (i.e. translated to the actual names of the
+     *         fields in DB).
+     * @throws RSQLValidationException If the field does not exists, or the
+     *         path goes through a reference (i.e. to another collection).
+     */
+    public String resolveProjectionPath(String fieldPath, Class<?> entityClass) throws RSQLValidationException {
+
+        if (resolveReferencedFieldPath(fieldPath, entityClass) != null) {
+            throw new RSQLValidationException(fieldPath, null,
+                    "Cannot project field of referenced entity: %s", fieldPath);
+        }
+        MappedFieldPath resolved = resolveFieldPath(fieldPath, entityClass);
+        String path = resolved.getFieldPath();
+
+        return resolved.getMappedField().hasAnnotation(Reference.class)
+                ? path.substring(0, path.length() - ".$id".length())
+                : path;
+    }
+
+    /**
+     * Resolves paths of all the collections of embedded documents that the
+     * given field path goes through, outermost first. For example, if
+     * {@code actors} is a list of embedded documents with a list
+     * {@code movies}, then for {@code actors.movies.title} it returns
+     * {@code actors} and {@code actors.movies}.
+     *
+     * @param fieldPath The field name or a path of the field inside
+     *        a subdocument(s) (using dot notation).
+     * @param entityClass A class of the {@link org.mongodb.morphia.annotations.Entity Entity}
+     *        that hold the field.
+     *
+     * @return The resolved paths (i.e. translated to the actual names of the
+     *         fields in DB) of the embedded lists, or an empty list if the
+     *         path doesn't go through any embedded list.
+     */
+    public List<String> resolveEmbeddedListPaths(String fieldPath, Class<?> entityClass) {
+
+        if (fieldPath.indexOf('.') < 0) {
+            return Collections.emptyList();
+        }
+        String[] segments = fieldPath.split("\\.");
+        List<MappedField> fields = walkMappedFields(segments, entityClass);
+        List<String> result = Collections.emptyList();
+
+        for (int i = 0; i < fields.size() && i < segments.length - 1; i++) {
+            MappedField mf = fields.get(i);
+
+            if (mf != null && mf.hasAnnotation(Reference.class)) {
+                break;
+            }
+            if (mf != null && mf.isMultipleValues()) {
+                if (result.isEmpty()) {
+                    result = new ArrayList<>(2);
+                }
+                result.add(toStoredPath(segments, fields, i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resolves a path that goes through a field annotated as a {@link Reference}.
+     * For example, if {@code parent} is a reference, then for {@code parent.title}
+     * it returns path {@code parent.$id}, class of the referenced entity and
+     * sub-selector {@code title} that should be resolved against the
+     * referenced entity.
+     *
+     *
+     * <p>It only walks the mapped classes, so it's cheap to call for any
+     * selector before the normal resolution; it doesn't validate the path,
+     * neither the sub-selector.</p>
+     *
+     * @param fieldPath The field name or a path of the field inside
+     *        a subdocument(s) (using dot notation).
+     * @param entityClass A class of the {@link org.mongodb.morphia.annotations.Entity Entity}
+     *        that hold the field.
+     * @return A {@code ReferencedFieldPath}, or {@code null} if the path
+     *         doesn't go through any reference.
+     */
+    public ReferencedFieldPath resolveReferencedFieldPath(String fieldPath, Class<?> entityClass) {
+
+        if (fieldPath.indexOf('.') < 0) {
+            return null;
         }
+        String[] segments = fieldPath.split("\\.");
+        List<MappedField> fields = walkMappedFields(segments, entityClass);
+
+        int last = fields.size() - 1;
+        MappedField mf = last >= 0 ? fields.get(last) : null;
+
+        // the walk stops on a reference, so it goes through a reference only
+        // if it's the last walked field and the path continues after it
+        if (mf == null || !mf.hasAnnotation(Reference.class) || last == segments.length - 1) {
+            return null;
+        }
+        int subSelectorStart = 0;
+        for (int i = 0; i <= last; i++) {
+            subSelectorStart += segments[i].length() + 1;
+        }
+        String path = toStoredPath(segments, fields, last) + ".$id";
+
+        return new ReferencedFieldPath(path, mf, resolveValueType(mf),
+                fieldPath.substring(subSelectorStart), fieldPath.substring(0, subSelectorStart));
     }
 
     /**
@@ -86,8 +214,7 @@ public class MappedFieldPathResolver {
      * referenced entity {@linkplain org.mongodb.morphia.annotations.Id Id}.
      */
     protected Class<?> resolveTargetValueType(MappedField mf) {
-        // subType/subClass is actually a generic type...
-        Class<?> type = (mf.isMultipleValues() && mf.getSubType() != null) ? mf.getSubClass() : mf.getType();
+        Class<?> type = resolveValueType(mf);
 
         if (mf.hasAnnotation(Reference.class)) {
             MappedField idField = mapper.getMappedClass(type).getMappedIdField();
@@ -97,4 +224,108 @@ public class MappedFieldPathResolver {
             return type;
         }
     }
+
+    private Class<?> resolveValueType(MappedField mf) {
+        // subType/subClass is actually a generic type...
+        return (mf.isMultipleValues() && mf.getSubType() != null) ? mf.getSubClass() : mf.getType();
+    }
+
+    /**
+     * Walks the mapped fields along the path using only lookups in the
+     * mapped classes, i.e. without {@link Mapper#validate Mapper.validate()}
+     * that reports an invalid path by throwing an exception. The walk stops
+     * after a reference, a map or a field of a type that is not embedded,
+     * or before a segment that is not mapped.
+     *
+     * @return The walked fields; {@code null} for positional segments like
+     *         {@code $} or an index.
+     */
+    private List<MappedField> walkMappedFields(String[] segments, Class<?> entityClass) {
+
+        List<MappedField> result = new ArrayList<>(segments.length);
+        MappedClass mc = mapper.getMappedClass(entityClass);
+
+        for (String segment : segments) {
+            MappedField mf = mc.getMappedField(segment);
+            if (mf == null) {
+                mf = mc.getMappedFieldByJavaField(segment);
+            }
+            if (mf == null) {
+                if (!result.isEmpty() && isPositional(segment)) {
+                    result.add(null);
+                    continue;
+                }
+                break;
+            }
+            result.add(mf);
+
+            Class<?> type = resolveValueType(mf);
+            if (mf.hasAnnotation(Reference.class) || mf.isMap() || !isEmbeddable(type)) {
+                break;
+            }
+            mc = mapper.getMappedClass(type);
+        }
+        return result;
+    }
+
+    /**
+     * Whether the walk of the path stopped on a segment that is not mapped
+     * in the embedded (or the entity) class, i.e. the path is surely invalid.
+     */
+    private boolean isUnmapped(String fieldPath, Class<?> entityClass) {
+
+        String[] segments = fieldPath.split("\\.");
+        List<MappedField> fields = walkMappedFields(segments, entityClass);
+
+        if (fields.size() == segments.length) {
+            return false;
+        }
+        if (fields.isEmpty()) {
+            return true;
+        }
+        MappedField mf = fields.get(fields.size() - 1);
+
+        return mf != null && !mf.hasAnnotation(Reference.class) && !mf.isMap() && isEmbeddable(resolveValueType(mf));
+    }
+
+    private String toStoredPath(String[] segments, List<MappedField> fields, int lastIndex) {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= lastIndex; i++) {
+            MappedField mf = fields.get(i);
+            if (i > 0) {
+                sb.append('.');
+            }
+            sb.append(mf != null ? mf.getNameToStore() : segments[i]);
+        }
+        return sb.toString();
+    }
+
+    private boolean isPositional(String segment) {
+        if (segment.equals("$")) {
+            return true;
+        }
+        for (int i = 0; i < segment.length(); i++) {
+            if (!Character.isDigit(segment.charAt(i))) {
+                return false;
+            }
+        }
+        return !segment.isEmpty();
+    }
+
+    /**
+     * Whether values of the type are stored as embedded documents, i.e.
+     * the type is annotated as {@link Embedded} or {@link Entity}, it's
+     * already mapped, or Morphia has no converter for it. Types with
+     * a converter (e.g. {@code String}, {@code Date}, {@code ObjectId})
+     * are never walked into, so no bogus mapped classes are created.
+     */
+    private boolean isEmbeddable(Class<?> type) {
+        if (type.isAnnotationPresent(Embedded.class) || type.isAnnotationPresent(Entity.class)
+                || mapper.isMapped(type)) {
+            return true;
+        }
+        return !type.isPrimitive() && !type.isEnum() && !type.isArray() && !type.isInterface()
+                && !mapper.getConverters().hasSimpleValueConverter(type);
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia.internal;
+
+import org.mongodb.morphia.query.Criteria;
+import org.mongodb.morphia.query.FilterOperator;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A {@link SimpleFieldCriteria} that matches ids of the referenced entities,
+ * i.e. the result of a comparison on a field of the referenced entity. It
+ * holds classes of the entities the ids were looked up in, so the results
+ * of the query can be invalidated when some of them changes.
+ */
+public class ReferenceCriteria extends SimpleFieldCriteria {
+
+    private final Set<Class<?>> referencedClasses;
+
+
+    /**
+     * @param fieldName The resolved path of the reference id.
+     * @param ids The ids of the matching referenced entities.
+     * @param referencedClasses The classes of the entities that the ids
+     *        were looked up in, including the nested references.
+     */
+    public ReferenceCriteria(String fieldName, Collection<?> ids, Set<Class<?>> referencedClasses) {
+        super(fieldName, FilterOperator.IN, ids);
+        this.referencedClasses = Collections.unmodifiableSet(referencedClasses);
+    }
+
+
+    /**
+     * Returns the classes of the entities that the ids were looked up in.
+     */
+    public Set<Class<?>> getReferencedClasses() {
+        return referencedClasses;
+    }
+
+    /**
+     * Collects the referenced classes of all the {@code ReferenceCriteria}
+     * in the compiled filter.
+     *
+     * @return A set of the classes, empty if the filter doesn't go through
+     *         any reference.
+     */
+    public static Set<Class<?>> collectReferencedClasses(Criteria compiled) {
+
+        if (compiled instanceof ReferenceCriteria) {
+            return ((ReferenceCriteria) compiled).getReferencedClasses();
+
+        } else if (compiled instanceof SimpleCriteriaContainer) {
+            Set<Class<?>> result = Collections.emptySet();
+
+            for (Criteria child : ((SimpleCriteriaContainer) compiled).getChildren()) {
+                Set<Class<?>> classes = collectReferencedClasses(child);
+
+                if (!classes.isEmpty()) {
+                    if (result.isEmpty()) {
+                        result = new HashSet<>();
+                    }
+                    result.addAll(classes);
+                }
+            }
+            return result;
+        }
+        return Collections.emptySet();
+    }
+}
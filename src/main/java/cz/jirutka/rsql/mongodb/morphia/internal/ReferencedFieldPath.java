@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia.internal;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.mongodb.morphia.mapping.MappedField;
+
+/**
+ * A field path that goes through a {@link org.mongodb.morphia.annotations.Reference Reference}.
+ */
+@Getter
+@AllArgsConstructor
+public class ReferencedFieldPath {
+
+    /**
+     * Resolved path of the reference's id, e.g. {@code parent.$id}.
+     */
+    private final String fieldPath;
+
+    /**
+     * The mapped field of the reference.
+     */
+    private final MappedField mappedField;
+
+    /**
+     * Class of the referenced entity.
+     */
+    private final Class<?> referencedClass;
+
+    /**
+     * The rest of the selector after the reference, i.e. a selector
+     * relative to the referenced entity.
+     */
+    private final String subSelector;
+
+    /**
+     * The part of the selector before the {@link #subSelector}, including
+     * the trailing dot, e.g. {@code parent.}.
+     */
+    private final String selectorPrefix;
+}
@@ -28,13 +28,21 @@ import org.mongodb.morphia.query.CriteriaContainerImpl;
 import org.mongodb.morphia.query.CriteriaJoin;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Subclass of {@link CriteriaContainerImpl} needed just to access the
  * protected constructor.
+ *
+ * <p>It can be {@linkplain #seal() sealed} to prevent modification, when
+ * it's shared (e.g. cached).</p>
  */
 public class SimpleCriteriaContainer extends CriteriaContainerImpl {
 
+    private volatile boolean sealed = false;
+
+
     public SimpleCriteriaContainer(CriteriaJoin joinMethod) {
         super(joinMethod);
     }
@@ -43,4 +51,66 @@ public class SimpleCriteriaContainer extends CriteriaContainerImpl {
         super(joinMethod);
         add(children.toArray(new Criteria[children.size()]));
     }
+
+    /**
+     * Makes this container unmodifiable, i.e. any attempt to add or remove
+     * a child will throw {@link UnsupportedOperationException}.
+     *
+     * @return This container.
+     */
+    public SimpleCriteriaContainer seal() {
+        sealed = true;
+        return this;
+    }
+
+    public boolean isSealed() {
+        return sealed;
+    }
+
+    @Override
+    public void add(Criteria... criteria) {
+        checkNotSealed();
+        super.add(criteria);
+    }
+
+    @Override
+    public void remove(Criteria criteria) {
+        checkNotSealed();
+        super.remove(criteria);
+    }
+
+    /**
+     * Does nothing, so this container (when not modified anymore) can be
+     * shared by multiple parent containers. The default implementation
+     * removes the criteria from the container it was attached to before.
+     */
+    @Override
+    public void attach(CriteriaContainerImpl container) {
+    }
+
+    @Override
+    public void setJoinMethod(CriteriaJoin joinMethod) {
+        checkNotSealed();
+        super.setJoinMethod(joinMethod);
+    }
+
+    /**
+     * @return An unmodifiable view of the children.
+     */
+    @Override
+    public List<Criteria> getChildren() {
+        return Collections.unmodifiableList(super.getChildren());
+    }
+
+    @Override
+    public void setChildren(List<Criteria> children) {
+        checkNotSealed();
+        super.setChildren(children);
+    }
+
+    private void checkNotSealed() {
+        if (sealed) {
+            throw new UnsupportedOperationException("Sealed criteria container cannot be modified");
+        }
+    }
 }
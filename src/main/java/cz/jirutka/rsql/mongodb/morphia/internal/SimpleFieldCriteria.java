@@ -26,6 +26,7 @@ package cz.jirutka.rsql.mongodb.morphia.internal;
 import com.mongodb.DBObject;
 import lombok.Getter;
 import org.mongodb.morphia.query.AbstractCriteria;
+import org.mongodb.morphia.query.CriteriaContainerImpl;
 import org.mongodb.morphia.query.FilterOperator;
 
 import java.util.HashMap;
@@ -35,6 +36,9 @@ import java.util.Map;
  * A simple replacement for the {@link org.mongodb.morphia.query.FieldCriteria}
  * that just holds values and implements the {@link #addTo(com.mongodb.DBObject)}
  * method, i.e. omits the resolving magic.
+ *
+ * <p>It's immutable, so the same instance may be safely added into multiple
+ * containers (e.g. when cached).</p>
  */
 @Getter
 public class SimpleFieldCriteria extends AbstractCriteria {
@@ -77,6 +81,14 @@ public class SimpleFieldCriteria extends AbstractCriteria {
         }
     }
 
+    /**
+     * Does nothing, this criteria is not bound to any container, so it can
+     * be shared.
+     */
+    @Override
+    public void attach(CriteriaContainerImpl container) {
+    }
+
     @Override
     public String toString() {
         return fieldName + " " + operator.val() + " " + value;
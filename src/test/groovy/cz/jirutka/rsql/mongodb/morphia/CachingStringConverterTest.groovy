@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia
+
+import spock.lang.Specification
+
+class CachingStringConverterTest extends Specification {
+
+    def delegate = Mock(StringConverter)
+
+
+    def 'convert value only once and count hits and misses'() {
+        setup:
+            def converter = new CachingStringConverter(delegate)
+        when:
+            def results = (1..3).collect { converter.convert('42', Integer) }
+        then:
+            1 * delegate.convert('42', Integer) >> 42
+        and:
+            results == [42, 42, 42]
+            converter.missCount == 1
+            converter.hitCount == 2
+    }
+
+    def 'cache values separately for each target type'() {
+        setup:
+            def converter = new CachingStringConverter(delegate)
+        when:
+            converter.convert('42', Integer)
+            converter.convert('42', Long)
+        then:
+            1 * delegate.convert('42', Integer) >> 42
+            1 * delegate.convert('42', Long) >> 42L
+    }
+
+    def "don't convert String"() {
+        setup:
+            def converter = new CachingStringConverter(delegate)
+        when:
+            converter.convert('allons-y!', String)
+        then:
+            0 * delegate._
+    }
+
+    def 'convert collection of values through the cache'() {
+        setup:
+            def converter = new CachingStringConverter(delegate)
+        when:
+            def result = converter.convert(['1', '2', '1'], Integer)
+        then:
+            1 * delegate.convert('1', Integer) >> 1
+            1 * delegate.convert('2', Integer) >> 2
+        and:
+            result == [1, 2, 1]
+    }
+
+    def 'evict least recently used values when exceeds maxEntries'() {
+        setup:
+            def converter = new CachingStringConverter(delegate, 2, 1000)
+            delegate.convert(_, Integer) >> { val, type -> val.toInteger() }
+        when:
+            ['1', '2', '1', '3'].each { converter.convert(it, Integer) }
+        then:
+            converter.size == 2
+            converter.evictionCount == 1
+        when:
+            converter.convert('1', Integer)
+        then:
+            converter.hitCount == 2
+    }
+
+    def 'evict values when exceeds maxWeight'() {
+        setup:
+            def converter = new CachingStringConverter(delegate, 100, 5)
+            delegate.convert(_, Integer) >> { val, type -> val.toInteger() }
+        when:
+            ['123', '45', '6'].each { converter.convert(it, Integer) }
+        then:
+            converter.size == 2
+            converter.weight == 3
+    }
+
+    def 'keep at most maxEntries values in all segments'() {
+        setup:
+            def converter = new CachingStringConverter(delegate)
+            delegate.convert(_, Integer) >> { val, type -> val.toInteger() }
+        when:
+            (1..3000).each { converter.convert(it.toString(), Integer) }
+        then:
+            converter.size <= CachingStringConverter.DEFAULT_MAX_ENTRIES
+            converter.size + converter.evictionCount == 3000
+    }
+
+    def "don't cache Date values, they're mutable"() {
+        setup:
+            def converter = new CachingStringConverter(delegate)
+        when:
+            def first = converter.convert('2014-01-01', Date)
+            first.time = 0
+            def second = converter.convert('2014-01-01', Date)
+        then:
+            2 * delegate.convert('2014-01-01', Date) >> { new Date(1388534400000) }
+        and:
+            second.time == 1388534400000
+    }
+
+    def 'not cache failed conversion'() {
+        setup:
+            def converter = new CachingStringConverter(delegate)
+        when:
+            converter.convert('foo', Integer)
+        then:
+            1 * delegate.convert('foo', Integer) >> { throw new RSQLArgumentFormatException('foo', Integer) }
+            thrown RSQLArgumentFormatException
+        and:
+            converter.size == 0
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia
+
+import cz.jirutka.rsql.mongodb.morphia.fixtures.RootEntity
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@Unroll
+class CanonicalFilterEmitterTest extends Specification {
+
+    @Shared dataStore = TestUtils.createDatastore()
+
+    def rsql = new MorphiaRSQLImpl(dataStore)
+    def emitter = new CanonicalFilterEmitter()
+
+
+    def 'emit the same form for equivalent filters: #first and #second'() {
+        expect:
+            emit(first) == emit(second)
+        where:
+            first                          | second
+            'a==u;b==v'                    | 'b==v;a==u'
+            'a==u,b==v,c==w'               | 'c==w,a==u,b==v'
+            '(a==u,b==v);c==w'             | 'c==w;(b==v,a==u)'
+            'title==Matrix;year=gt=2000'   | 'year=gt=2000;title==Matrix'
+    }
+
+    def 'emit different forms for different filters: #first and #second'() {
+        expect:
+            emit(first) != emit(second)
+        where:
+            first           | second
+            'a==u;b==v'     | 'a==u,b==v'
+            'a==u'          | 'a!=u'
+            'a==u'          | 'a==v'
+            'a=in=(u,v)'    | 'a=in=(u,w)'
+    }
+
+    def emit(String filter) {
+        rsql.createFilter(filter, RootEntity, emitter)
+    }
+}
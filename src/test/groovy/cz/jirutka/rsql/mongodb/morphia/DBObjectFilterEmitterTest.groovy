@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia
+
+import cz.jirutka.rsql.mongodb.morphia.fixtures.RootEntity
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@Unroll
+class DBObjectFilterEmitterTest extends Specification {
+
+    @Shared dataStore = TestUtils.createDatastore()
+
+    def rsql = new MorphiaRSQLImpl(dataStore)
+    def emitter = new DBObjectFilterEmitter()
+
+    def setupSpec() {
+        def values = ['u', 'v', 'w', 'x']
+        def id = 0L
+        values.each { a -> values.each { b -> values.each { c ->
+            dataStore.save(new RootEntity(entityId: id++, a: a, b: b, c: c, d: values[(int) (id % 4)],
+                    title: a + b, genres: [a, b] as Set))
+        }}}
+    }
+
+
+    def 'emit filter document: #filter'() {
+        expect:
+            rsql.createFilter(filter, RootEntity, emitter) == expected
+        where:
+            filter                    | expected
+            'title==Matrix'           | [ name: 'Matrix' ]
+            'a==u;b!=v;c=in=(w,x)'    | [ a: 'u', b: [$ne: 'v'], c: [$in: ['w', 'x']] ]
+            'a=gt=u;a=lt=w;c==w'      | [ $and: [ [a: [$gt: 'u']], [a: [$lt: 'w']], [c: 'w'] ] ]
+            'a==u,b==v;c==w,d==x'     | [ $or: [ [a: 'u'], [b: 'v', c: 'w'], [d: 'x'] ] ]
+            '(a==u,b==v);(c==w,d==x)' | [ $and: [ [$or: [[a: 'u'], [b: 'v']]], [$or: [[c: 'w'], [d: 'x']]] ] ]
+    }
+
+    def 'match the same entities as createQuery for: #filter'() {
+        setup:
+            def collection = dataStore.getCollection(RootEntity)
+            def expected = rsql.createQuery(filter, RootEntity).asList()*.entityId
+        when:
+            def document = rsql.createFilter(filter, RootEntity, emitter)
+        then:
+            collection.find(document)*.get('_id') as Set == expected as Set
+            ! expected.empty
+        where:
+            filter << [ 'title==uv', 'a==u;b!=v;c=in=(w,x)', 'a=gt=u;a=lt=w;c==w', 'a==u,b==v;c==w,d==x',
+                        'genres=all=(u,v);c=out=(w)', 'a=ge=v;b=le=v,c==x' ]
+    }
+}
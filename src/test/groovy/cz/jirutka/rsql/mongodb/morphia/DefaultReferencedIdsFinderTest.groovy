@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia
+
+import cz.jirutka.rsql.mongodb.morphia.fixtures.RootEntity
+import cz.jirutka.rsql.mongodb.morphia.internal.SimpleFieldCriteria
+import spock.lang.Specification
+
+import static org.mongodb.morphia.query.FilterOperator.EQUAL
+import static org.mongodb.morphia.query.FilterOperator.GREATER_THAN_OR_EQUAL
+
+class DefaultReferencedIdsFinderTest extends Specification {
+
+    def dataStore = TestUtils.createDatastore()
+    def finder = new DefaultReferencedIdsFinder(dataStore, 2, 10, 60000)
+
+    def setup() {
+        dataStore.save(
+                new RootEntity(entityId: 1, year: 1999),
+                new RootEntity(entityId: 2, year: 2003),
+                new RootEntity(entityId: 3, year: 2003))
+    }
+
+
+    def 'find ids of entities matching the criteria'() {
+        expect:
+            finder.findIds(RootEntity, new SimpleFieldCriteria('year', EQUAL, 2003)) as Set == [2L, 3L] as Set
+    }
+
+    def 'return cached ids for the same criteria'() {
+        setup:
+            finder.findIds(RootEntity, new SimpleFieldCriteria('year', EQUAL, 1999))
+        when:
+            dataStore.delete(RootEntity, 1L)
+        then:
+            finder.findIds(RootEntity, new SimpleFieldCriteria('year', EQUAL, 1999)) == [1L]
+        when:
+            finder.clearCache()
+        then:
+            finder.findIds(RootEntity, new SimpleFieldCriteria('year', EQUAL, 1999)).empty
+    }
+
+    def 'throw RSQLValidationException when criteria matches more than maxIds entities'() {
+        when:
+            finder.findIds(RootEntity, new SimpleFieldCriteria('year', GREATER_THAN_OR_EQUAL, 1999))
+        then:
+            thrown RSQLValidationException
+    }
+}
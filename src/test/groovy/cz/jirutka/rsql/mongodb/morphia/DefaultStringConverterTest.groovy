@@ -28,6 +28,8 @@ import org.joda.time.DateTimeZone
 import spock.lang.Specification
 import spock.lang.Unroll
 
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
 
 @Unroll
@@ -41,6 +43,7 @@ class DefaultStringConverterTest extends Specification {
 
     static {
         TimeZone.setDefault(TimeZone.getTimeZone('CET'))
+        DateTimeZone.setDefault(DateTimeZone.forID('CET'))
     }
 
 
@@ -54,15 +57,62 @@ class DefaultStringConverterTest extends Specification {
             '84.4'    | Double   || 84.4
             '42.2'    | Float    || new Float(42.2)
             '6666666' | Long     || 6666666L
+            '42'      | int      || 42
+            '84.4'    | double   || 84.4
+            '6666666' | long     || 6666666L
+            'true'    | boolean  || true
+    }
+
+    def 'parse primitive #type value: #value'() {
+        when:
+            def result = converter.convert(value, type)
+        then:
+            result == expected
+            result.class == expected.class
+        where:
+            value  | type    || expected
+            '-7'   | int     || -7
+            '7'    | long    || 7L
+            '2.5'  | float   || 2.5f
+            '2.5'  | double  || 2.5d
+            'no'   | boolean || false
+    }
+
+    def 'throw ArgumentFormatException when value is illegal primitive #type'() {
+        when:
+            converter.convert('foo', type)
+        then:
+            def ex = thrown(RSQLArgumentFormatException)
+            ex.targetType == type
+        where:
+            type << [int, long, float, double, boolean]
+    }
+
+    def 'parse Date values concurrently'() {
+        setup:
+            def values = (1..28).collect { String.format('2014-02-%02dT1%d:30:00Z', it, it % 10) }
+            def expected = values.collect { converter.convert(it, Date) }
+            def executor = Executors.newFixedThreadPool(8)
+        when:
+            def futures = (1..8).collect {
+                executor.submit({
+                    (1..50).collect { values.collect { converter.convert(it, Date) } }
+                } as Callable)
+            }
+            def results = futures*.get().sum()
+        then:
+            results.every { it == expected }
+        cleanup:
+            executor.shutdown()
     }
 
     def 'parse Boolean value: #value'() {
         expect:
             converter.convert(value, Boolean) == expected
         where:
-            value << ['true',  'TrUe',  'yes', 'Yes', 'y',
-                      'false', 'FaLse', 'no',  'No',  'n' ]
-            expected << [true] * 5 + [false] * 5
+            value << ['true',  'TrUe',  'yes', 'Yes', 'y',  ' true\t',
+                      'false', 'FaLse', 'no',  'No',  'n',  ' N ' ]
+            expected << [true] * 6 + [false] * 6
     }
 
     def 'parse Enum value case-insensitively'() {
@@ -75,6 +125,18 @@ class DefaultStringConverterTest extends Specification {
             'HoUrS'  | TimeUnit.HOURS
     }
 
+    def 'parse Enum value with non-uppercase constants case-insensitively: #value'() {
+        expect:
+            converter.convert(value, MixedCase) == expected
+        where:
+            value       | expected
+            'camelCase' | MixedCase.camelCase
+            'CAMELCASE' | MixedCase.camelCase
+            'camelcase' | MixedCase.camelCase
+            'lower'     | MixedCase.lower
+            'LoWeR'     | MixedCase.lower
+    }
+
     def 'parse Date value: #value'() {
         expect:
             converter.convert(value, Date) == expected
@@ -112,13 +174,50 @@ class DefaultStringConverterTest extends Specification {
         where:
             value        | type
             'NaN'        | Integer
+            '4x2'        | Integer
+            '99999999999'| Integer
+            ''           | Long
+            '-'          | Long
+            '1.2.3'      | Double
+            '.'          | Double
+            '1e'         | Float
             'foo'        | TimeUnit
             'foo'        | Boolean
+            'yess'       | Boolean
+            ''           | Boolean
             '17.11.1989' | Date
 
             typeMsg = type == TimeUnit ? 'Enum' : type.simpleName
     }
 
+    def "don't create cause for malformed value: #value"() {
+        when:
+            converter.convert(value, type)
+        then:
+            def ex = thrown(RSQLArgumentFormatException)
+            ex.cause == null
+        where:
+            value  | type
+            'foo'  | Integer
+            '1,5'  | Double
+            'yess' | Boolean
+    }
+
+    def 'parse #type value in the formats accepted by valueOf: #value'() {
+        expect:
+            converter.convert(value, type) == expected
+        where:
+            value     | type   || expected
+            '-42'     | Long   || -42L
+            '+42'     | int    || 42
+            '1e3'     | Double || 1000.0
+            '.5'      | Double || 0.5
+            '2.'      | Double || 2.0
+            ' 1.5d '  | Double || 1.5
+            '-1.5E-1' | double || -0.15
+            '2.5f'    | Float  || 2.5f
+    }
+
     def 'throw ArgumentFormatException when unknown type'() {
         when:
             converter.convert('foo', DefaultStringConverter)
@@ -127,6 +226,8 @@ class DefaultStringConverterTest extends Specification {
     }
 
 
+    static enum MixedCase { camelCase, lower }
+
     static class MockValueOf {
         def value
         static MockValueOf valueOf(String s) {
@@ -0,0 +1,50 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia
+
+import cz.jirutka.rsql.mongodb.morphia.fixtures.RootEntity
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@Unroll
+class MorphiaCriteriaEmitterTest extends Specification {
+
+    @Shared dataStore = TestUtils.createDatastore()
+
+    def rsql = new MorphiaRSQLImpl(dataStore)
+    def emitter = new MorphiaCriteriaEmitter()
+
+
+    def 'emit criteria that builds the same query as createQuery for: #filter'() {
+        setup:
+            def query = dataStore.createQuery(RootEntity)
+        when:
+            query.and(rsql.createFilter(filter, RootEntity, emitter))
+        then:
+            query.queryObject == rsql.createQuery(filter, RootEntity).queryObject
+        where:
+            filter << ['title==Matrix;genres=all=(scifi,action)', 'a==u,b==v;c==w,d==x', 'a=gt=u;a=lt=v']
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia
+
+import com.mongodb.BasicDBObject
+import cz.jirutka.rsql.mongodb.morphia.fixtures.RootEntity
+import cz.jirutka.rsql.mongodb.morphia.internal.SimpleFieldCriteria
+import org.mongodb.morphia.query.FilterOperator
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class MorphiaRSQLImplTest extends Specification {
+
+    @Shared dataStore = TestUtils.createDatastore()
+
+    def rsql = new MorphiaRSQLImpl(dataStore)
+
+
+    @Unroll
+    def 'inject mandatory filter first and flattened: #filter'() {
+        setup:
+            rsql.mandatoryFilterProvider = Stub(MandatoryFilterProvider) {
+                getMandatoryFilter(RootEntity) >> 'a==acme;b==x'
+            }
+        when:
+            def queryObject = rsql.createQuery(filter, RootEntity).queryObject
+        then:
+            queryObject == expected
+            queryObject.keySet() as List == expected.keySet() as List
+        where:
+            filter          | expected
+            'title==Matrix' | [ a: 'acme', b: 'x', name: 'Matrix' ]
+            'c==u;d==v'     | [ a: 'acme', b: 'x', c: 'u', d: 'v' ]
+            'c==u,d==v'     | [ a: 'acme', b: 'x', $or: [[c: 'u'], [d: 'v']] ]
+    }
+
+    def 'reuse compiled mandatory filter in multiple queries'() {
+        setup:
+            rsql.mandatoryFilterProvider = Stub(MandatoryFilterProvider) {
+                getMandatoryFilter(RootEntity) >> 'a==acme,b==x'
+            }
+        when:
+            def first = rsql.createQuery('c==u', RootEntity)
+            def second = rsql.createQuery('c==v', RootEntity)
+        then:
+            first.queryObject == [ $or: [[a: 'acme'], [b: 'x']], c: 'u' ]
+            second.queryObject == [ $or: [[a: 'acme'], [b: 'x']], c: 'v' ]
+    }
+
+    def "don't cache mandatory filter that goes through a reference"() {
+        setup:
+            def finder = Mock(ReferencedIdsFinder)
+            rsql.referencedIdsFinder = finder
+            rsql.mandatoryFilterProvider = Stub(MandatoryFilterProvider) {
+                getMandatoryFilter(RootEntity) >> 'parent.a==acme'
+            }
+        when:
+            rsql.createQuery('c==u', RootEntity)
+            def query = rsql.createQuery('c==v', RootEntity)
+        then:
+            2 * finder.findIds(RootEntity, _) >>> [[1L], [1L, 2L]]
+            query.queryObject == [ 'parent.$id': [$in: [1L, 2L]], c: 'v' ]
+    }
+
+    def 'compile mandatory filter again when groupElemMatch is changed'() {
+        setup:
+            rsql.mandatoryFilterProvider = Stub(MandatoryFilterProvider) {
+                getMandatoryFilter(RootEntity) >> 'actors.movies.a==acme;actors.movies.b==x'
+            }
+        when:
+            rsql.createQuery('c==u', RootEntity)
+            rsql.groupElemMatch = true
+        then:
+            rsql.createQuery('c==u', RootEntity).queryObject ==
+                    [ actors: [$elemMatch: [movies: [$elemMatch: [a: 'acme', b: 'x']]]], c: 'u' ]
+    }
+
+    def 'compile mandatory filter again when converter is changed'() {
+        setup:
+            rsql.mandatoryFilterProvider = Stub(MandatoryFilterProvider) {
+                getMandatoryFilter(RootEntity) >> 'a==acme'
+            }
+        when:
+            rsql.createQuery('c==u', RootEntity)
+            rsql.converter = Stub(StringConverter) {
+                convert(_ as String, _) >> { String value, Class type -> value.toUpperCase() }
+            }
+        then:
+            rsql.createQuery('c==u', RootEntity).queryObject == [ a: 'ACME', c: 'U' ]
+    }
+
+    def "don't change criteria when there's no mandatory filter for the entity"() {
+        setup:
+            rsql.mandatoryFilterProvider = Stub(MandatoryFilterProvider) {
+                getMandatoryFilter(_) >> null
+            }
+        expect:
+            rsql.createQuery('c==u', RootEntity).queryObject == [ c: 'u' ]
+    }
+
+    def 'report selector of the comparison on referenced entity as written'() {
+        setup:
+            rsql.referencedIdsFinder = Mock(ReferencedIdsFinder)
+        when:
+            rsql.createCriteria('title==ok;parent.director.illegal==1', RootEntity)
+        then:
+            def ex = thrown(RSQLValidationException)
+            ex.selector == 'parent.director.illegal'
+    }
+
+    def "don't query referenced entities unless ReferencedIdsFinder is set"() {
+        when:
+            rsql.createCriteria('parent.title==Matrix', RootEntity)
+        then:
+            def ex = thrown(RSQLValidationException)
+            ex.selector == 'parent.title'
+    }
+
+    def 'collect all errors in the filter'() {
+        setup:
+            rsql.referencedIdsFinder = Mock(ReferencedIdsFinder)
+        when:
+            def errors = rsql.validate('illegal==1;director.birthdate==foo,(title==ok;parent.illegal==2)', RootEntity)
+        then:
+            errors*.selector == ['illegal', 'director.birthdate', 'parent.illegal']
+            errors*.class == [RSQLValidationException, RSQLArgumentFormatException, RSQLValidationException]
+    }
+
+    def "don't fill in stack trace of errors when disabled on the instance"() {
+        setup:
+            rsql.stackTraceEnabled = false
+        when:
+            rsql.createCriteria('illegal==1', RootEntity)
+        then:
+            def ex = thrown(RSQLValidationException)
+            ex.stackTrace.length == 0
+        and:
+            rsql.validate('year==foo', RootEntity)[0].stackTrace.length == 0
+        when: 'another instance with the default setting is used'
+            new MorphiaRSQLImpl(dataStore).createCriteria('illegal==1', RootEntity)
+        then:
+            def other = thrown(RSQLValidationException)
+            other.stackTrace.length > 0
+        and: 'the setting does not leak out of the call'
+            new RSQLValidationException('foo').stackTrace.length > 0
+    }
+
+    def 'pass created queries to queryDiagnostics when set'() {
+        setup:
+            def diagnostics = Mock(QueryDiagnostics, constructorArgs: [1.0d, 10, QueryDiagnostics.Ranking.SLOWEST])
+            rsql.queryDiagnostics = diagnostics
+            def sampled = null
+        when:
+            def query = rsql.createQuery('title==Matrix', RootEntity, ['title'])
+        then:
+            1 * diagnostics.sample('title==Matrix', _) >> { args -> sampled = args[1]; true }
+            sampled.is(query)
+            sampled.fieldsObject.name == 1
+    }
+
+    def 'return no errors when filter is valid'() {
+        expect:
+            rsql.validate('title==Matrix;director.birthdate=gt=2014-01-01', RootEntity).empty
+    }
+
+    def 'return parser error when filter is malformed'() {
+        when:
+            def errors = rsql.validate('title==', RootEntity)
+        then:
+            errors.size() == 1
+            errors[0] instanceof RSQLException
+    }
+
+    def 'load partially populated entities with the requested fields only'() {
+        setup:
+            def parent = new RootEntity(entityId: 100)
+            dataStore.save(parent)
+            dataStore.save(new RootEntity(entityId: 101, title: 'Matrix', year: 1999, a: 'u', parent: parent))
+        when:
+            def entity = rsql.createQuery('entityId==101', RootEntity, ['title', 'a']).get()
+        then:
+            entity.title == 'Matrix'
+            entity.a == 'u'
+            entity.year == 0
+            entity.parent == null
+    }
+
+    def 'create projection and map view of the requested fields'() {
+        setup:
+            def parent = new RootEntity(entityId: 100)
+            dataStore.save(parent)
+            dataStore.save(new RootEntity(entityId: 102, title: 'Matrix', year: 1999, parent: parent))
+            def projection = rsql.createProjection(['title', 'parent', 'year'], RootEntity)
+        when:
+            def document = dataStore.getCollection(RootEntity).findOne([_id: 102L] as BasicDBObject, projection.toDBObject())
+        then:
+            projection.toDBObject() == [ name: 1, parent: 1, year: 1, className: 1 ]
+            projection.toMap(document) == [ title: 'Matrix', parent: 100L, year: 1999 ]
+    }
+
+    @Unroll
+    def 'reject overlapping projection fields: #fields'() {
+        when:
+            rsql.createProjection(fields, RootEntity)
+        then:
+            def ex = thrown(RSQLValidationException)
+            ex.selector == fields.last()
+        where:
+            fields << [ ['director', 'director.birthdate'], ['director.birthdate', 'year', 'director'] ]
+    }
+
+    def 'load subclass of the entity with projection'() {
+        setup:
+            dataStore.save(dataStore.getCollection(RootEntity).name, new SequelEntity(entityId: 103, title: 'Aliens', year: 1986))
+        when:
+            def entity = rsql.createQuery('title==Aliens', RootEntity, ['title']).get()
+        then:
+            entity instanceof SequelEntity
+            entity.title == 'Aliens'
+            entity.year == 0
+    }
+
+    @Unroll
+    def 'compile the same filter incrementally as from scratch: #filter'() {
+        setup:
+            def incremental = new MorphiaRSQLImpl(dataStore)
+            incremental.incrementalCompilation = true
+        when:
+            incremental.createCriteria(filter.replace('u', 'x'), RootEntity)
+        then:
+            incremental.createQuery(filter, RootEntity).queryObject == rsql.createQuery(filter, RootEntity).queryObject
+        where:
+            filter << ['a==u', 'a==u;b==v', 'a==u,b=in=(u,v)', '(a==u,b==v);(c==u,d==w)', 'a==u;(b==v,c==u;d==w)']
+    }
+
+    def 'reuse compiled sub-criteria of unchanged nodes'() {
+        setup:
+            rsql.incrementalCompilation = true
+        when:
+            def first = rsql.createCriteria('a==u;(b==v,c==w)', RootEntity)
+            def second = rsql.createCriteria('a==x;(b==v,c==w)', RootEntity)
+        then:
+            ! second.is(first)
+            ! second.children[0].is(first.children[0])
+            second.children[1].is(first.children[1])
+        and:
+            rsql.createCriteria('a==u;(b==v,c==w)', RootEntity).is(first)
+    }
+
+    def 'compile sub-criteria again when converter is changed'() {
+        setup:
+            rsql.incrementalCompilation = true
+        when:
+            rsql.createCriteria('a==u;b==v', RootEntity)
+            rsql.converter = Stub(StringConverter) {
+                convert(_ as String, _) >> { String value, Class type -> value.toUpperCase() }
+            }
+        then:
+            rsql.createQuery('a==u;b==v', RootEntity).queryObject == [ a: 'U', b: 'V' ]
+    }
+
+    def "don't allow to modify memoized criteria"() {
+        setup:
+            rsql.incrementalCompilation = true
+            def criteria = rsql.createCriteria('a==u;b==v', RootEntity)
+        when:
+            criteria.add(new SimpleFieldCriteria('c', FilterOperator.EQUAL, 'w'))
+        then:
+            thrown UnsupportedOperationException
+        and:
+            rsql.createQuery('a==u;b==v', RootEntity).queryObject == [ a: 'u', b: 'v' ]
+    }
+
+    def "don't memoize sub-criteria with comparisons on referenced entity"() {
+        setup:
+            def finder = Mock(ReferencedIdsFinder)
+            rsql.incrementalCompilation = true
+            rsql.referencedIdsFinder = finder
+        when:
+            rsql.createCriteria('a==u;(b==v,parent.title==Matrix)', RootEntity)
+            rsql.createCriteria('a==u;(b==v,parent.title==Matrix)', RootEntity)
+        then:
+            2 * finder.findIds(RootEntity, _) >> [1L]
+    }
+
+
+    static class SequelEntity extends RootEntity { }
+}
@@ -1,7 +1,10 @@
 package cz.jirutka.rsql.mongodb.morphia
 
+import com.mongodb.BasicDBObject
 import cz.jirutka.rsql.mongodb.morphia.fixtures.RootEntity
+import cz.jirutka.rsql.mongodb.morphia.internal.MappedFieldPathResolver
 import cz.jirutka.rsql.parser.RSQLParser
+import org.mongodb.morphia.query.Criteria
 import org.mongodb.morphia.query.FieldCriteria
 import spock.lang.Shared
 import spock.lang.Specification
@@ -90,6 +93,95 @@ class MorphiaRSQLVisitorTest extends Specification {
             'parent==123' | [ 'parent.$id': '123' ]
     }
 
+    def 'convert RSQL on fields of @Reference to $in of ids found by ReferencedIdsFinder'() {
+        setup:
+            def finder = Mock(ReferencedIdsFinder)
+            def visitor = new MorphiaRSQLVisitor(RootEntity, dataStore.mapper, fakeConverter,
+                    new MappedFieldPathResolver(dataStore.mapper), finder)
+        when:
+            query.and( parse('parent.title==Matrix;year==2003;parent.year==1999').accept(visitor) )
+        then:
+            1 * finder.findIds(RootEntity, { toDBObject(it) == [name: 'Matrix', year: '1999'] }) >> [1L, 2L]
+        and:
+            query.queryObject == [ 'parent.$id': [$in: [1L, 2L]], year: '2003' ]
+    }
+
+    def 'throw RSQLValidationException when selector goes through @Reference and no ReferencedIdsFinder'() {
+        when:
+            parse('parent.title==Matrix').accept(visitor)
+        then:
+            thrown RSQLValidationException
+    }
+
+    @Unroll
+    def 'group comparisons on the same embedded list into $elemMatch: #rsql'() {
+        setup:
+            visitor.groupElemMatch = true
+        when:
+            query.and( parse(rsql).accept(visitor) )
+        then:
+            query.queryObject == expected
+        where:
+            rsql                                                  | expected
+            'actors.birthdate=gt=u;actors.movies.title==v'        | [ actors: [ $elemMatch: [ birthdate: [$gt:'u'], 'movies.name':'v' ]]]
+            'actors.birthdate=gt=u;year==v;actors.birthdate=lt=w' | [ actors: [ $elemMatch: [ $and: [[birthdate: [$gt:'u']], [birthdate: [$lt:'w']]] ]], year:'v' ]
+            'actors.birthdate==u;director.birthdate==v'           | [ 'actors.birthdate':'u', 'director.birthdate':'v' ]
+            'actors.birthdate==u,actors.movies.title==v'          | [ $or: [ ['actors.birthdate':'u'], ['actors.movies.name':'v'] ]]
+            'actors.movies.title==u;actors.movies.a==v'           | [ actors: [ $elemMatch: [ movies: [ $elemMatch: [ name:'u', a:'v' ]]]]]
+            'actors.birthdate==u;actors.movies.title==v;actors.movies.a==w' | [ actors: [ $elemMatch: [ birthdate:'u', movies: [ $elemMatch: [ name:'v', a:'w' ]]]]]
+            'actors.birthdate=gt=u;actors.movies.title!=v'        | [ 'actors.birthdate': [$gt:'u'], 'actors.movies.name': [$ne:'v'] ]
+            'actors.birthdate==u;actors.movies.title=out=(v,w)'   | [ 'actors.birthdate':'u', 'actors.movies.name': [$nin:['v','w']] ]
+    }
+
+    @Unroll
+    def 'convert geospatial RSQL to Mongo query: #rsql'() {
+        setup:
+            def visitor = new MorphiaRSQLVisitor(RootEntity, dataStore.mapper, new DefaultStringConverter())
+        when:
+            query.and( parse(rsql).accept(visitor) )
+        then:
+            query.queryObject == expected
+        where:
+            rsql                               | expected
+            'location=near=(14.5,50.0)'        | [ location: [ $nearSphere: [ $geometry: point(14.5d, 50.0d) ]]]
+            'location=near=(14.5,50.0,1000)'   | [ location: [ $nearSphere: [ $geometry: point(14.5d, 50.0d), $maxDistance: 1000.0d ]]]
+            'location=within=(14.5,50.0,6371008.8)' | [ location: [ $geoWithin: [ $centerSphere: [[14.5d, 50.0d], 1.0d] ]]]
+            'location=within=(14,50,15,51)'    | [ location: [ $geoWithin: [ $geometry: [ type: 'Polygon', coordinates: [[
+                                                     [14.0d, 50.0d], [15.0d, 50.0d], [15.0d, 51.0d], [14.0d, 51.0d], [14.0d, 50.0d] ]] ]]]]
+    }
+
+    @Unroll
+    def 'throw RSQLValidationException when geospatial operator has wrong arguments: #rsql'() {
+        setup:
+            def visitor = new MorphiaRSQLVisitor(RootEntity, dataStore.mapper, new DefaultStringConverter())
+        when:
+            parse(rsql).accept(visitor)
+        then:
+            thrown RSQLValidationException
+        where:
+            rsql << ['location=near=(14.5)', 'location=within=(14,50)', 'location=within=(1,2,3,4,5)']
+    }
+
+    @Unroll
+    def 'throw RSQLArgumentFormatException when geospatial argument is out of range: #rsql'() {
+        setup:
+            def visitor = new MorphiaRSQLVisitor(RootEntity, dataStore.mapper, new DefaultStringConverter())
+        when:
+            parse(rsql).accept(visitor)
+        then:
+            def ex = thrown(RSQLArgumentFormatException)
+            ex.selector == 'location'
+            ex.value == value
+        where:
+            rsql                              | value
+            'location=near=(181,50)'          | '181'
+            'location=near=(14,-90.5)'        | '-90.5'
+            'location=near=(14,50,-1)'        | '-1'
+            'location=within=(14,50,-100)'    | '-100'
+            'location=within=(14,50,15,91)'   | '91'
+            'location=within=(-180.1,50,15,51)' | '-180.1'
+    }
+
 
     //////// Helpers ////////
 
@@ -103,6 +195,16 @@ class MorphiaRSQLVisitorTest extends Specification {
         new FieldCriteria(dataStore.createQuery(RootEntity), field, operator, value, false, false)
     }
 
+    def toDBObject(Criteria criteria) {
+        def obj = new BasicDBObject()
+        criteria.addTo(obj)
+        obj
+    }
+
+    def point(lng, lat) {
+        [ type: 'Point', coordinates: [lng, lat] ]
+    }
+
     def parse(String rsql) {
         new RSQLParser(mongoOperators()).parse(rsql)
     }
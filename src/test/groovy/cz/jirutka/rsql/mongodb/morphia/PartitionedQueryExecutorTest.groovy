@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia
+
+import cz.jirutka.rsql.mongodb.morphia.fixtures.RootEntity
+import org.bson.types.ObjectId
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.TimeUnit
+
+import static cz.jirutka.rsql.mongodb.morphia.PartitionedQueryExecutor.Partition
+
+@Unroll
+class PartitionedQueryExecutorTest extends Specification {
+
+    def dataStore = TestUtils.createDatastore()
+    def rsql = new MorphiaRSQLImpl(dataStore)
+    def executor = new PartitionedQueryExecutor(dataStore, rsql, 2)
+
+    def setup() {
+        executor.register(RootEntity, 'year', [
+                new Partition('movies_1990', 1990, 2000),
+                new Partition('movies_2000', 2000, 2010),
+                new Partition('movies_2010', 2010, null) ])
+
+        def titles = [2003: 'b', 2010: 'a']
+
+        [1995, 1999, 2000, 2003, 2009, 2010, 2014].eachWithIndex { year, i ->
+            dataStore.insert("movies_${year.intdiv(10) * 10}".toString(),
+                    new RootEntity(entityId: i, year: year, a: 'u', title: titles[year]))
+        }
+    }
+
+    def cleanup() {
+        executor.shutdown()
+    }
+
+
+    def 'select partitions for filter: #filter'() {
+        setup:
+            def criteria = rsql.createCriteria(filter, RootEntity)
+        expect:
+            executor.selectPartitions(RootEntity, criteria)*.collectionName == expected
+        where:
+            filter                        | expected
+            'year=ge=2005'                | ['movies_2000', 'movies_2010']
+            'year=gt=2010'                | ['movies_2010']
+            'year=lt=2000'                | ['movies_1990']
+            'year=le=2000'                | ['movies_1990', 'movies_2000']
+            'year==2000'                  | ['movies_2000']
+            'year=in=(1995,2015)'         | ['movies_1990', 'movies_2010']
+            'year=ge=2001;year=lt=2005'   | ['movies_2000']
+            'a==u;year=ge=2010'           | ['movies_2010']
+            'a==u'                        | ['movies_1990', 'movies_2000', 'movies_2010']
+            'year=ge=2010,a==u'           | ['movies_1990', 'movies_2000', 'movies_2010']
+    }
+
+    def 'find entities in selected partitions and merge them on sort keys: #order'() {
+        expect:
+            executor.find(filter, RootEntity, order, limit)*.year == expected
+        where:
+            filter          | order         | limit || expected
+            'year=ge=1999'  | 'year'        | 0     || [1999, 2000, 2003, 2009, 2010, 2014]
+            'year=ge=1999'  | '-year'       | 3     || [2014, 2010, 2009]
+            'year=lt=2005'  | '-year'       | 0     || [2003, 2000, 1999, 1995]
+            'year=ge=2000'  | 'title,-year' | 0     || [2014, 2009, 2000, 2010, 2003]
+    }
+
+    def 'throw IllegalStateException when more than maxResults entities match and no limit is given'() {
+        setup:
+            executor.maxResults = 2
+        when:
+            executor.find('year=ge=1999', RootEntity, order, 0)
+        then:
+            thrown IllegalStateException
+        where:
+            order << ['year', null]
+    }
+
+    def 'return all entities when maxResults is not exceeded'() {
+        setup:
+            executor.maxResults = 2
+        expect:
+            executor.find('year=ge=2010', RootEntity, 'year', 0)*.year == [2010, 2014]
+    }
+
+    def 'compare values of different types in BSON order: #a < #b'() {
+        expect:
+            PartitionedQueryExecutor.OrderComparator.compareValues(a, b) < 0
+            PartitionedQueryExecutor.OrderComparator.compareValues(b, a) > 0
+        where:
+            a      | b
+            null   | 1
+            1      | 2L
+            1.5d   | 2
+            42     | 'a'
+            'a'    | 'b'
+            'DAYS' | TimeUnit.HOURS
+            'z'    | [1]
+            [1]    | new ObjectId()
+            true   | new Date()
+            false  | true
+    }
+
+    def 'resolve partition key selector when registering partitions'() {
+        when:
+            executor.register(RootEntity, 'title', [])
+        then:
+            notThrown RSQLValidationException
+        when:
+            executor.register(RootEntity, 'illegal', [])
+        then:
+            thrown RSQLValidationException
+    }
+
+    def 'convert numeric partition bounds to type of the partition key'() {
+        setup:
+            executor.register(RootEntity, 'year', [
+                    new Partition('movies_1990', 1990L, 2000L),
+                    new Partition('movies_2000', 2000.0d, null) ])
+        expect:
+            executor.selectPartitions(RootEntity, rsql.createCriteria('year=ge=2000', RootEntity))*.collectionName == ['movies_2000']
+    }
+
+    def 'throw IllegalArgumentException when partition bound is not compatible with the partition key'() {
+        when:
+            executor.register(RootEntity, 'year', [ new Partition('movies_1990', '1990', '2000') ])
+        then:
+            thrown IllegalArgumentException
+    }
+
+    def 'throw IllegalArgumentException when entity class has no partitions'() {
+        when:
+            executor.selectPartitions(String, rsql.createCriteria('a==u', RootEntity))
+        then:
+            thrown IllegalArgumentException
+    }
+}
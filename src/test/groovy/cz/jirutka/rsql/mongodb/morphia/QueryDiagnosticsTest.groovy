@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia
+
+import com.mongodb.BasicDBObject
+import cz.jirutka.rsql.mongodb.morphia.fixtures.RootEntity
+import org.mongodb.morphia.query.Query
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.Executors
+
+import static cz.jirutka.rsql.mongodb.morphia.QueryDiagnostics.Ranking.LEAST_SELECTIVE
+import static cz.jirutka.rsql.mongodb.morphia.QueryDiagnostics.Ranking.SLOWEST
+import static java.util.concurrent.TimeUnit.SECONDS
+
+class QueryDiagnosticsTest extends Specification {
+
+    def filter = new BasicDBObject('year', 2014)
+
+
+    def 'record legacy explain result'() {
+        setup:
+            def diagnostics = new QueryDiagnostics(1.0, 10, SLOWEST)
+        when:
+            diagnostics.record('year==2014', RootEntity, filter,
+                    [cursor: 'BtreeCursor year_1', n: 5, nscanned: 10, nscannedObjects: 10, millis: 42])
+        then:
+            with(diagnostics.entries[0]) {
+                rsql == 'year==2014'
+                entityClass == RootEntity
+                indexName == 'year_1'
+                docsExamined == 10
+                docsReturned == 5
+                executionTimeMillis == 42
+                selectivity == 0.5
+            }
+    }
+
+    def 'record explain result with executionStats'() {
+        setup:
+            def diagnostics = new QueryDiagnostics(1.0, 10, SLOWEST)
+            def explain = [
+                queryPlanner: [ winningPlan: [ stage: 'FETCH', inputStage: [ stage: 'IXSCAN', indexName: 'year_1' ]]],
+                executionStats: [ nReturned: 5, totalDocsExamined: 20, executionTimeMillis: 7 ]
+            ]
+        when:
+            diagnostics.record('year==2014', RootEntity, filter, explain)
+        then:
+            with(diagnostics.entries[0]) {
+                indexName == 'year_1'
+                docsExamined == 20
+                docsReturned == 5
+                executionTimeMillis == 7
+            }
+    }
+
+    @Unroll
+    def 'keep only the top #capacity entries ranked by #ranking'() {
+        setup:
+            def diagnostics = new QueryDiagnostics(1.0, capacity, ranking)
+        when:
+            [[1, 10, 30], [2, 50, 10], [3, 20, 20], [4, 5, 40]].each { id, examined, millis ->
+                diagnostics.record("id==$id", RootEntity, filter,
+                        [cursor: 'BasicCursor', n: 0, nscannedObjects: examined, millis: millis])
+            }
+        then:
+            diagnostics.entries*.rsql == expected
+        where:
+            ranking         | capacity || expected
+            SLOWEST         | 2        || ['id==4', 'id==1']
+            LEAST_SELECTIVE | 3        || ['id==2', 'id==3', 'id==1']
+    }
+
+    def 'never sample when sample rate is zero'() {
+        expect:
+            ! new QueryDiagnostics(0, 10, SLOWEST).shouldSample()
+    }
+
+    def 'explain copy of the sampled query in background'() {
+        setup:
+            def executor = Executors.newSingleThreadExecutor()
+            def diagnostics = Spy(QueryDiagnostics, constructorArgs: [1.0d, 10, SLOWEST, executor])
+            def query = Mock(Query)
+            def copy = Stub(Query) {
+                getEntityClass() >> RootEntity
+                getQueryObject() >> filter
+            }
+        when:
+            def sampled = diagnostics.sample('year==2014', query)
+            executor.shutdown()
+            executor.awaitTermination(5, SECONDS)
+        then:
+            sampled
+            1 * query.cloneQuery() >> copy
+            1 * diagnostics.explain(copy) >> new BasicDBObject(
+                    [cursor: 'BtreeCursor year_1', n: 5, nscanned: 10, nscannedObjects: 10, millis: 42])
+        and:
+            diagnostics.entries*.indexName == ['year_1']
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia
+
+import cz.jirutka.rsql.mongodb.morphia.fixtures.ChildEntity
+import cz.jirutka.rsql.mongodb.morphia.fixtures.RootEntity
+import cz.jirutka.rsql.mongodb.morphia.internal.ReferenceCriteria
+import spock.lang.Specification
+
+class QueryResultCacheTest extends Specification {
+
+    def dataStore = TestUtils.createDatastore()
+    def rsql = new MorphiaRSQLImpl(dataStore)
+    def cache = new QueryResultCache(dataStore, rsql, 10, 60000)
+
+    def setup() {
+        dataStore.save(
+                new RootEntity(entityId: 1, a: 'u', b: 'v'),
+                new RootEntity(entityId: 2, a: 'u', b: 'w'))
+    }
+
+
+    def 'return cached result for equivalent filter'() {
+        setup:
+            def first = cache.find('a==u;b=in=(v,w)', RootEntity)
+        when:
+            dataStore.delete(RootEntity, 1L)  // delete doesn't invalidate
+        then:
+            first*.entityId == [1L, 2L]
+            cache.find('b=in=(v,w);a==u', RootEntity).is(first)
+    }
+
+    def 'distinguish results by order and limit'() {
+        expect:
+            cache.find('a==u', RootEntity, '-entityId', 0)*.entityId == [2L, 1L]
+            cache.find('a==u', RootEntity, '-entityId', 1)*.entityId == [2L]
+            cache.find('a==u', RootEntity)*.entityId as Set == [1L, 2L] as Set
+    }
+
+    def 'invalidate results of entity class when entity is saved through datastore'() {
+        setup:
+            cache.find('a==u', RootEntity)
+        when:
+            dataStore.save(new RootEntity(entityId: 3, a: 'u'))
+        then:
+            cache.find('a==u', RootEntity)*.entityId as Set == [1L, 2L, 3L] as Set
+    }
+
+    def 'invalidate results of entity class on external notification'() {
+        setup:
+            cache.find('a==u', RootEntity)
+            dataStore.delete(RootEntity, 1L)
+        when:
+            cache.invalidate(RootEntity)
+        then:
+            cache.find('a==u', RootEntity)*.entityId == [2L]
+    }
+
+    def 'invalidate results of filter that goes through reference to the invalidated class'() {
+        setup:
+            def stubRsql = Stub(MorphiaRSQL) {
+                createCriteria('parent.foo==x', RootEntity) >> new ReferenceCriteria('parent.$id', [1L], [ChildEntity] as Set)
+            }
+            def cache = new QueryResultCache(dataStore, stubRsql, 10, 60000)
+            def first = cache.find('parent.foo==x', RootEntity)
+        when:
+            cache.invalidate(String)
+        then:
+            cache.find('parent.foo==x', RootEntity).is(first)
+        when:
+            cache.invalidate(ChildEntity)
+        then:
+            ! cache.find('parent.foo==x', RootEntity).is(first)
+    }
+
+    def 'clear cached referenced ids on invalidation'() {
+        setup:
+            def cleared = 0
+            rsql.referencedIdsFinder = new DefaultReferencedIdsFinder(dataStore) {
+                void clearCache() { cleared++; super.clearCache() }
+            }
+        when:
+            cache.invalidate(RootEntity)
+        then:
+            cleared == 1
+    }
+
+    def 'share one interceptor among caches of the same datastore'() {
+        setup:
+            def interceptorsCount = dataStore.mapper.interceptors.size()
+            def other = new QueryResultCache(dataStore, rsql)
+            def first = cache.find('a==u', RootEntity)
+            def otherFirst = other.find('a==u', RootEntity)
+        when:
+            dataStore.save(new RootEntity(entityId: 3, a: 'u'))
+        then:
+            dataStore.mapper.interceptors.size() == interceptorsCount
+            ! cache.find('a==u', RootEntity).is(first)
+            ! other.find('a==u', RootEntity).is(otherFirst)
+    }
+
+    def "don't invalidate results on save when closed"() {
+        setup:
+            cache.close()
+            def first = cache.find('a==u', RootEntity)
+        when:
+            dataStore.save(new RootEntity(entityId: 3, a: 'u'))
+        then:
+            cache.find('a==u', RootEntity).is(first)
+    }
+
+    def 'return unmodifiable result'() {
+        when:
+            cache.find('a==u', RootEntity).clear()
+        then:
+            thrown UnsupportedOperationException
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia
+
+import spock.lang.Specification
+
+import java.util.concurrent.atomic.AtomicInteger
+
+class RSQLExceptionTest extends Specification {
+
+    def cleanup() {
+        RSQLException.setStackTraceEnabled(null)
+    }
+
+
+    def 'fill in stack trace by default'() {
+        expect:
+            new RSQLValidationException('foo').stackTrace.length > 0
+    }
+
+    def 'not fill in stack trace when disabled'() {
+        setup:
+            RSQLException.setStackTraceEnabled(false)
+        expect:
+            new RSQLValidationException('foo').stackTrace.length == 0
+            new RSQLArgumentFormatException('foo', Integer).stackTrace.length == 0
+    }
+
+    def 'format message lazily'() {
+        setup:
+            def calls = new AtomicInteger()
+            def arg = new Object() {
+                String toString() { calls.incrementAndGet(); 'foo' }
+            }
+        when:
+            def ex = new RSQLValidationException('year', null, 'Invalid %s', arg)
+        then:
+            calls.get() == 0
+        when:
+            def message = ex.message
+        then:
+            message == 'Invalid foo'
+            calls.get() == 1
+    }
+
+    def 'set selector only once'() {
+        when:
+            def ex = new RSQLValidationException('year', null, 'Invalid %s', 'year')
+        then:
+            ex.selector == 'year'
+            ex.message == 'Invalid year'
+        when:
+            ex.withSelector('other')
+        then:
+            ex.selector == 'year'
+    }
+}
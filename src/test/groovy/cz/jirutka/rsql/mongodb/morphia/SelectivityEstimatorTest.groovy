@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia
+
+import cz.jirutka.rsql.mongodb.morphia.fixtures.ChildEntity
+import cz.jirutka.rsql.mongodb.morphia.fixtures.RootEntity
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@Unroll
+class SelectivityEstimatorTest extends Specification {
+
+    def dataStore = TestUtils.createDatastore()
+    def rsql = new MorphiaRSQLImpl(dataStore)
+    def estimator = new SelectivityEstimator(dataStore, 100, 60000)
+
+    def setup() {
+        (0..9).each { i ->
+            dataStore.save(new RootEntity(entityId: i, year: 2000 + i, a: i < 5 ? 'low' : 'high',
+                                          genres: i % 2 ? ['scifi', 'action'] : ['drama']))
+        }
+    }
+
+    def cleanup() {
+        estimator.shutdown()
+    }
+
+
+    def 'estimate selectivity of filter: #filter'() {
+        setup:
+            estimator.refresh(RootEntity)
+        when:
+            def estimate = estimator.estimate(RootEntity, rsql.createCriteria(filter, RootEntity))
+        then:
+            estimate.available
+            Math.abs(estimate.selectivity - expected) < 0.001
+            estimate.count == Math.round(expected * 10)
+        where:
+            filter                          | expected
+            'year==2003'                    | 0.1
+            'year!=2003'                    | 0.9
+            'year=in=(2001,2002,2003)'      | 0.3
+            'year=out=(2001,2002)'          | 0.8
+            'year=gt=2004'                  | 0.5
+            'year=ge=2004'                  | 0.6
+            'year=lt=2002'                  | 0.2
+            'year=le=2002'                  | 0.3
+            'genres==scifi'                 | 0.5
+            'genres=all=(scifi,action)'     | 0.25
+            'a==low;year=ge=2004'           | 0.3
+            'year=lt=2002,year=gt=2007'     | 0.36
+            'year==1990'                    | 0.05
+            'genres=lt=b'                   | 0.5
+            'genres=gt=e'                   | 0.5
+            'genres=ge=drama'               | 1.0
+            'b=lt=x'                        | SelectivityEstimator.UNKNOWN_SELECTIVITY
+            'b=gt=x'                        | SelectivityEstimator.UNKNOWN_SELECTIVITY
+    }
+
+    def 'estimate comparison on referenced entity by the sampled reference ids'() {
+        setup:
+            def parent = dataStore.get(RootEntity, 0L)
+            (1..3).each { i -> dataStore.save(dataStore.get(RootEntity, (long) i).with { it.parent = parent; it }) }
+            rsql.referencedIdsFinder = new DefaultReferencedIdsFinder(dataStore)
+            estimator.refresh(RootEntity)
+        expect:
+            estimator.estimate(RootEntity, rsql.createCriteria('parent.year==2000', RootEntity)).selectivity == 0.3
+    }
+
+    def 'estimate $elemMatch as the comparisons on fields of the list elements'() {
+        setup:
+            (0..9).each { i ->
+                dataStore.save(dataStore.get(RootEntity, (long) i).with {
+                    it.actors = [ new ChildEntity(movies: [ new RootEntity(a: i < 5 ? 'low' : 'high', year: 2000 + i) ]) ]
+                    it
+                })
+            }
+            estimator.refresh(RootEntity)
+            def filter = 'actors.movies.a==low;actors.movies.year=ge=2004'
+        when:
+            def separate = estimator.estimate(RootEntity, rsql.createCriteria(filter, RootEntity))
+            rsql.groupElemMatch = true
+            def grouped = estimator.estimate(RootEntity, rsql.createCriteria(filter, RootEntity))
+        then:
+            Math.abs(grouped.selectivity - 0.3) < 0.001
+            grouped.selectivity == separate.selectivity
+    }
+
+    def 'return unavailable estimate and load statistics in background when not loaded yet'() {
+        setup:
+            def criteria = rsql.createCriteria('year==2003', RootEntity)
+        when:
+            def estimate = estimator.estimate(RootEntity, criteria)
+        then:
+            ! estimate.available
+            estimate.count == -1
+        when:
+            def deadline = System.currentTimeMillis() + 5000
+            while (! estimate.available && System.currentTimeMillis() < deadline) {
+                sleep 10
+                estimate = estimator.estimate(RootEntity, criteria)
+            }
+        then:
+            estimate.available
+            estimate.count == 1
+    }
+}
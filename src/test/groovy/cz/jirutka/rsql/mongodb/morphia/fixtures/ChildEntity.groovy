@@ -23,8 +23,11 @@
  */
 package cz.jirutka.rsql.mongodb.morphia.fixtures
 
+import org.bson.types.ObjectId
+
 class ChildEntity {
 
     Date birthdate
+    ObjectId externalId
     List<RootEntity> movies
 }
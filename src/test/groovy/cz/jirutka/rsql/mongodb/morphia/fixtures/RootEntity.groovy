@@ -37,6 +37,7 @@ class RootEntity {
     Set<String> genres
     List<ChildEntity> actors
     ChildEntity director
+    List<Double> location
 
     @Reference(lazy=true)
     RootEntity parent
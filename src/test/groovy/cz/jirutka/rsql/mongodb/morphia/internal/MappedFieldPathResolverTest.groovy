@@ -23,9 +23,11 @@
  */
 package cz.jirutka.rsql.mongodb.morphia.internal
 
+import cz.jirutka.rsql.mongodb.morphia.RSQLValidationException
 import cz.jirutka.rsql.mongodb.morphia.TestUtils
 import cz.jirutka.rsql.mongodb.morphia.fixtures.ChildEntity
 import cz.jirutka.rsql.mongodb.morphia.fixtures.RootEntity
+import org.bson.types.ObjectId
 import spock.lang.Shared
 import spock.lang.Specification
 import spock.lang.Unroll
@@ -58,4 +60,87 @@ class MappedFieldPathResolverTest extends Specification {
             'actors.movies.name' || 'actors.movies.name'| 'title'       | String        | RootEntity  | String
             'parent'             || 'parent.$id'        | 'parent'      | RootEntity    | RootEntity  | Long
     }
+
+    def 'throw RSQLValidationException without cause when field is not mapped: #selector'() {
+        when:
+            resolver.resolveFieldPath(selector, RootEntity)
+        then:
+            def ex = thrown(RSQLValidationException)
+            ex.selector == selector
+            ex.cause == null
+        where:
+            selector << ['illegal', 'director.illegal', 'actors.movies.illegal']
+    }
+
+    def 'resolve embedded list paths for selector: #selector'() {
+        expect:
+            resolver.resolveEmbeddedListPaths(selector, RootEntity) == expected
+        where:
+            selector                   | expected
+            'year'                     | []
+            'actors'                   | []
+            'actors.birthdate'         | ['actors']
+            'actors.movies.name'       | ['actors', 'actors.movies']
+            'director.birthdate'       | []
+            'director.movies.year'     | ['director.movies']
+            'parent.actors.birthdate'  | []
+    }
+
+    def 'resolve referenced field path for selector: #selector'() {
+        when:
+            def rfp = resolver.resolveReferencedFieldPath(selector, RootEntity)
+        then:
+            rfp.fieldPath       == mongoFieldPath
+            rfp.referencedClass == RootEntity
+            rfp.subSelector     == subSelector
+            rfp.selectorPrefix + rfp.subSelector == selector
+        where:
+            selector                    || mongoFieldPath             | subSelector
+            'parent.title'              || 'parent.$id'               | 'title'
+            'parent.director.birthdate' || 'parent.$id'               | 'director.birthdate'
+            'actors.movies.parent.year' || 'actors.movies.parent.$id' | 'year'
+    }
+
+    def 'return null when selector does not go through reference: #selector'() {
+        expect:
+            resolver.resolveReferencedFieldPath(selector, RootEntity) == null
+        where:
+            selector << ['parent', 'title', 'director.birthdate', 'illegal.field']
+    }
+
+    def "don't walk into fields of types with a converter: #selector"() {
+        setup:
+            def mapper = TestUtils.createDatastore().mapper
+            def resolver = new MappedFieldPathResolver(mapper)
+        when:
+            resolver.resolveReferencedFieldPath(selector, RootEntity)
+        then:
+            ! mapper.isMapped(type)
+        where:
+            selector                        | type
+            'director.externalId.timestamp' | ObjectId
+            'director.birthdate.time'       | Date
+            'title.bytes'                   | String
+    }
+
+    def 'resolve projection path for selector: #selector'() {
+        expect:
+            resolver.resolveProjectionPath(selector, RootEntity) == expected
+        where:
+            selector             | expected
+            'title'              | 'name'
+            'director.birthdate' | 'director.birthdate'
+            'actors.movies.name' | 'actors.movies.name'
+            'parent'             | 'parent'
+    }
+
+    def 'throw RSQLValidationException when projection path is invalid: #selector'() {
+        when:
+            resolver.resolveProjectionPath(selector, RootEntity)
+        then:
+            def ex = thrown(RSQLValidationException)
+            ex.selector == selector
+        where:
+            selector << ['illegal', 'parent.title']
+    }
 }
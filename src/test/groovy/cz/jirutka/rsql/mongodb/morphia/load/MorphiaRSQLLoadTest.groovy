@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia.load
+
+import cz.jirutka.rsql.mongodb.morphia.MorphiaRSQLImpl
+import cz.jirutka.rsql.mongodb.morphia.TestUtils
+import cz.jirutka.rsql.mongodb.morphia.fixtures.RootEntity
+import spock.lang.IgnoreIf
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Multi-threaded load test that drives random filters from
+ * {@link RSQLWorkloadGenerator} through {@link MorphiaRSQLImpl#createQuery}
+ * against Fongo. It verifies that concurrently built queries are the same
+ * as the ones built in a single thread and prints throughput, latency
+ * percentiles and allocation rate per filter shape.
+ *
+ * <p>It's skipped unless the system property <tt>rsql.loadtest</tt> is set,
+ * e.g. <tt>mvn test -Drsql.loadtest -Dtest=MorphiaRSQLLoadTest</tt>. Other
+ * properties: <tt>rsql.loadtest.threads</tt>, <tt>.filters</tt>,
+ * <tt>.iterations</tt>, <tt>.seed</tt>, <tt>.maxDepth</tt>,
+ * <tt>.maxArguments</tt> and <tt>.execute</tt> (run the queries too).</p>
+ */
+@IgnoreIf({ System.getProperty('rsql.loadtest') == null })
+class MorphiaRSQLLoadTest extends Specification {
+
+    static final int THREADS = Integer.getInteger('rsql.loadtest.threads', 8)
+    static final int FILTERS = Integer.getInteger('rsql.loadtest.filters', 500)
+    static final int ITERATIONS = Integer.getInteger('rsql.loadtest.iterations', 20)
+    static final long SEED = Long.getLong('rsql.loadtest.seed', 42)
+    static final boolean EXECUTE = Boolean.getBoolean('rsql.loadtest.execute')
+
+    @Shared dataStore = TestUtils.createDatastore()
+    @Shared rsql = new MorphiaRSQLImpl(dataStore)
+
+    def threadMXBean = ManagementFactory.threadMXBean
+
+
+    def setupSpec() {
+        def random = new Random(SEED)
+        (1..1000).each { id ->
+            dataStore.save(new RootEntity(entityId: id, year: 1950 + random.nextInt(70),
+                    title: RSQLWorkloadGenerator.WORDS[random.nextInt(RSQLWorkloadGenerator.WORDS.size())]))
+        }
+    }
+
+
+    def 'create queries for random filters concurrently'() {
+        setup:
+            def generator = new RSQLWorkloadGenerator(SEED)
+            generator.maxDepth = Integer.getInteger('rsql.loadtest.maxDepth', generator.maxDepth)
+            generator.maxArguments = Integer.getInteger('rsql.loadtest.maxArguments', generator.maxArguments)
+            if (EXECUTE) {
+                // geo queries need a 2dsphere index
+                generator.operatorWeights['=near='] = 0
+                generator.operatorWeights['=within='] = 0
+            }
+            def filters = (1..FILTERS).collect { generator.next() }
+
+            // reference results built in a single thread
+            def expected = filters.collectEntries { [(it): buildQuery(it).toString()] }
+
+            def stats = new ConcurrentHashMap<String, ShapeStats>()
+            def mismatches = new CopyOnWriteArrayList<String>()
+            def errors = new CopyOnWriteArrayList<Throwable>()
+            def executor = Executors.newFixedThreadPool(THREADS)
+
+        when:
+            long start = System.nanoTime()
+
+            def futures = (1..THREADS).collect { threadNum ->
+                executor.submit({
+                    def shuffled = new ArrayList(filters)
+                    Collections.shuffle(shuffled, new Random(SEED + threadNum))
+
+                    ITERATIONS.times {
+                        for (String filter : shuffled) {
+                            try {
+                                long allocBefore = allocatedBytes()
+                                long t0 = System.nanoTime()
+
+                                def queryObject = buildQuery(filter)
+
+                                long elapsed = System.nanoTime() - t0
+                                long allocated = allocatedBytes() - allocBefore
+
+                                if (queryObject.toString() != expected[filter]) {
+                                    mismatches << "${filter}: ${queryObject} != ${expected[filter]}".toString()
+                                }
+                                shapeStats(stats, filter).add(elapsed, allocated)
+
+                            } catch (Throwable ex) {
+                                errors << ex
+                            }
+                        }
+                    }
+                } as Callable)
+            }
+            futures*.get()
+            executor.shutdown()
+            executor.awaitTermination(1, TimeUnit.MINUTES)
+
+            long elapsedNanos = System.nanoTime() - start
+            printReport(stats, elapsedNanos)
+
+        then:
+            errors.empty
+            mismatches.empty
+    }
+
+
+    //////// Helpers ////////
+
+    def buildQuery(String filter) {
+        def query = rsql.createQuery(filter, RootEntity)
+        if (EXECUTE) {
+            query.asList()
+        }
+        query.queryObject
+    }
+
+    long allocatedBytes() {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().id)
+        }
+        0
+    }
+
+    ShapeStats shapeStats(Map<String, ShapeStats> stats, String filter) {
+        def shape = RSQLWorkloadGenerator.shapeOf(filter)
+        def existing = stats.putIfAbsent(shape, new ShapeStats())
+        existing ?: stats[shape]
+    }
+
+    void printReport(Map<String, ShapeStats> stats, long elapsedNanos) {
+        long total = stats.values()*.count.sum() as long
+        def all = new ShapeStats()
+        stats.values().each { all.merge(it) }
+
+        println String.format('%n=== RSQL load test: %d threads, %d filters, %d shapes ===',
+                THREADS, FILTERS, stats.size())
+        println String.format('Throughput: %.0f ops/s, total: %d ops in %d ms',
+                total / (elapsedNanos / 1e9), total, TimeUnit.NANOSECONDS.toMillis(elapsedNanos))
+        println 'ALL: ' + all.summary()
+        println '--- slowest shapes (by p99) ---'
+
+        stats.entrySet().sort { -it.value.percentile(99) }.take(20).each {
+            println it.value.summary() + '  ' + it.key
+        }
+    }
+
+
+    static class ShapeStats {
+
+        final List<Long> latencies = []
+        long allocated = 0
+
+        synchronized void add(long latencyNanos, long allocatedBytes) {
+            latencies << latencyNanos
+            allocated += allocatedBytes
+        }
+
+        synchronized void merge(ShapeStats other) {
+            latencies.addAll(other.latencies)
+            allocated += other.allocated
+        }
+
+        synchronized int getCount() {
+            latencies.size()
+        }
+
+        synchronized long percentile(int p) {
+            def sorted = latencies.sort(false)
+            sorted[Math.min(sorted.size() - 1, (int) (sorted.size() * p / 100))]
+        }
+
+        synchronized String summary() {
+            String.format('n=%6d  p50=%6dus  p90=%6dus  p99=%6dus  max=%7dus  alloc=%7dB/op',
+                    count, percentile(50).intdiv(1000), percentile(90).intdiv(1000),
+                    percentile(99).intdiv(1000), percentile(100).intdiv(1000), allocated.intdiv(count))
+        }
+    }
+}
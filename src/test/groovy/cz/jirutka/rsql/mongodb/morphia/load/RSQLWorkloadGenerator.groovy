@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2014 Czech Technical University in Prague.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.rsql.mongodb.morphia.load
+
+/**
+ * Generator of random, but valid RSQL filters over the
+ * {@link cz.jirutka.rsql.mongodb.morphia.fixtures.RootEntity RootEntity} fixture.
+ * It's deterministic for the given seed.
+ */
+class RSQLWorkloadGenerator {
+
+    // no selectors through a reference (e.g. parent.year), they'd measure
+    // the queries of the referenced entities instead of building the query
+    static final Map<String, String> FIELDS = [
+        'title': 'string', 'a': 'string', 'b': 'string', 'year': 'int', 'genres': 'string',
+        'director.birthdate': 'date', 'actors.birthdate': 'date', 'actors.movies.title': 'string',
+        'parent': 'long'
+    ]
+
+    static final Set<String> MULTI_VALUE_OPERATORS = ['=in=', '=out=', '=all=']
+
+    static final List<String> WORDS = ['matrix', 'alien', 'brazil', 'heat', 'memento', 'ronin', 'se7en', 'up']
+
+    final Random random
+
+    /** Maximal depth of nested logical nodes. */
+    int maxDepth = 3
+
+    /** Maximal number of children of a logical node. */
+    int maxChildren = 4
+
+    /** Maximal number of arguments of multi-value operators. */
+    int maxArguments = 5
+
+    /** Probability that a node is a logical node (when depth allows). */
+    double logicalNodeRatio = 0.35
+
+    /** Relative weights of the operators. */
+    Map<String, Integer> operatorWeights = [
+        '==': 40, '!=': 10, '=gt=': 8, '=ge=': 4, '=lt=': 8, '=le=': 4,
+        '=in=': 12, '=out=': 4, '=all=': 4, '=near=': 3, '=within=': 3
+    ]
+
+
+    RSQLWorkloadGenerator(long seed) {
+        this.random = new Random(seed)
+    }
+
+
+    String next() {
+        node(0, true)
+    }
+
+    /**
+     * Returns a shape of the filter, i.e. the filter with arguments replaced
+     * by question marks.
+     */
+    static String shapeOf(String rsql) {
+        rsql.replaceAll(/(=[a-z]*=|!=)(\([^)]*\)|[^;,()]+)/, '$1?')
+    }
+
+
+    private String node(int depth, boolean root) {
+        if (depth < maxDepth && random.nextDouble() < logicalNodeRatio) {
+            def separator = random.nextBoolean() ? ';' : ','
+            def children = (1..(2 + random.nextInt(maxChildren - 1))).collect { node(depth + 1, false) }
+            def joined = children.join(separator)
+
+            return root ? joined : "(${joined})"
+        }
+        comparison()
+    }
+
+    private String comparison() {
+        def operator = pickOperator()
+
+        switch (operator) {
+            case '=near=':
+                return "location=near=(${lng()},${lat()},${random.nextInt(50000)})"
+            case '=within=':
+                if (random.nextBoolean()) {
+                    return "location=within=(${lng()},${lat()},${random.nextInt(50000)})"
+                }
+                return "location=within=(${lng()},${lat()},${lng()},${lat()})"
+            case '=all=':
+                return "genres=all=(${arguments('string').join(',')})"
+        }
+        def selector = pick(FIELDS.keySet() as List)
+        def type = FIELDS[selector]
+
+        if (operator in MULTI_VALUE_OPERATORS) {
+            return "${selector}${operator}(${arguments(type).join(',')})"
+        } else {
+            return "${selector}${operator}${value(type)}"
+        }
+    }
+
+    private List<String> arguments(String type) {
+        (1..(1 + random.nextInt(maxArguments))).collect { value(type) }
+    }
+
+    private String value(String type) {
+        switch (type) {
+            case 'int':  return String.valueOf(1950 + random.nextInt(70))
+            case 'long': return String.valueOf(random.nextInt(1000))
+            case 'date': return date() + (random.nextBoolean() ? "T1${random.nextInt(10)}:30:00Z" : '')
+            default:     return pick(WORDS)
+        }
+    }
+
+    private String pickOperator() {
+        int total = operatorWeights.values().sum() as int
+        int r = random.nextInt(total)
+
+        for (entry in operatorWeights) {
+            r -= entry.value
+            if (r < 0) {
+                return entry.key
+            }
+        }
+        throw new IllegalStateException()
+    }
+
+    private <T> T pick(List<T> list) {
+        list[random.nextInt(list.size())]
+    }
+
+    private String date() {
+        String.format('%04d-%02d-%02d', 1950 + random.nextInt(70), 1 + random.nextInt(12), 1 + random.nextInt(28))
+    }
+
+    private String lng() {
+        String.format(Locale.ROOT, '%.4f', -180 + random.nextDouble() * 360)
+    }
+
+    private String lat() {
+        String.format(Locale.ROOT, '%.4f', -90 + random.nextDouble() * 180)
+    }
+}